@@ -0,0 +1,143 @@
+package enigma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks of the individual steps of a conversion: alphabet lookup,
+ *  permutation, one rotor, and stepping and converting with a whole
+ *  machine, on synthetic machines of several shapes.  The alphabet,
+ *  permutation and rotor benchmarks each make one pass over the whole
+ *  alphabet, so their times grow with alphabetSize.
+ *  @author Arhan Vohra
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ComponentBenchmark {
+
+    /** Number of characters in the alphabet. */
+    @Param({"26", "62"})
+    public int alphabetSize;
+
+    /** Number of rotor slots. */
+    @Param({"5", "8"})
+    public int rotors;
+
+    /** Number of pawls. */
+    @Param({"1", "3"})
+    public int pawls;
+
+    /** Length of a short message. */
+    static final int SHORT = 25;
+
+    /** Length of a long message. */
+    static final int LONG = 1 << 16;
+
+    /** Build the machine and messages for the current parameters. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticMachine synthetic =
+            new SyntheticMachine(alphabetSize, rotors, pawls);
+        _alphabet = synthetic.alphabet();
+        _chars = SyntheticMachine.CHARS.substring(0, alphabetSize)
+            .toCharArray();
+        _permutation = synthetic.rotors().get(1).permutation();
+        _rotor = synthetic.movingRotor();
+        _rotor.set(alphabetSize / 2);
+        _machine = synthetic.newMachine();
+        _shortMessage = synthetic.message(SHORT, true);
+        _longMessage = synthetic.message(LONG, true);
+    }
+
+    /** Alphabet.toInt on each character. */
+    @Benchmark
+    public void alphabetToInt(Blackhole bh) {
+        for (char c : _chars) {
+            bh.consume(_alphabet.toInt(c));
+        }
+    }
+
+    /** Permutation.permute on each index. */
+    @Benchmark
+    public void permutationPermute(Blackhole bh) {
+        for (int k = 0; k < _chars.length; k += 1) {
+            bh.consume(_permutation.permute(k));
+        }
+    }
+
+    /** Permutation.invert on each index. */
+    @Benchmark
+    public void permutationInvert(Blackhole bh) {
+        for (int k = 0; k < _chars.length; k += 1) {
+            bh.consume(_permutation.invert(k));
+        }
+    }
+
+    /** MovingRotor.convertForward on each index. */
+    @Benchmark
+    public void rotorConvertForward(Blackhole bh) {
+        for (int k = 0; k < _chars.length; k += 1) {
+            bh.consume(_rotor.convertForward(k));
+        }
+    }
+
+    /** MovingRotor.convertBackward on each index. */
+    @Benchmark
+    public void rotorConvertBackward(Blackhole bh) {
+        for (int k = 0; k < _chars.length; k += 1) {
+            bh.consume(_rotor.convertBackward(k));
+        }
+    }
+
+    /** One step of the machine's rotors. */
+    @Benchmark
+    public void machineAdvance() {
+        _machine.advanceMachine();
+    }
+
+    /** Machine.convert on a message of SHORT characters. */
+    @Benchmark
+    public String machineConvertShort() {
+        return _machine.convert(_shortMessage);
+    }
+
+    /** Machine.convert on a message of LONG characters. */
+    @Benchmark
+    public String machineConvertLong() {
+        return _machine.convert(_longMessage);
+    }
+
+    /** Alphabet of the machine. */
+    private Alphabet _alphabet;
+
+    /** Characters of _alphabet. */
+    private char[] _chars;
+
+    /** Wiring of the rotor in slot 1. */
+    private Permutation _permutation;
+
+    /** A moving rotor, at a setting other than 0. */
+    private MovingRotor _rotor;
+
+    /** The whole machine. */
+    private Machine _machine;
+
+    /** Messages of SHORT and LONG characters. */
+    private String _shortMessage, _longMessage;
+}
@@ -0,0 +1,89 @@
+package enigma;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmark of converting many messages that share a rotor selection,
+ *  each with its own machine at different settings, as one Lockstep
+ *  task.
+ *  @author Arhan Vohra
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LockstepBenchmark {
+
+    /** Number of characters in the alphabet. */
+    @Param({"26", "62"})
+    public int alphabetSize;
+
+    /** Number of rotor slots. */
+    @Param({"5", "8"})
+    public int rotors;
+
+    /** Number of messages converted together. */
+    static final int MESSAGES = 256;
+
+    /** Length of each message. */
+    static final int LENGTH = 512;
+
+    /** Build the machines and messages for the current parameters. */
+    @Setup(Level.Trial)
+    public void setUp() {
+        SyntheticMachine synthetic =
+            new SyntheticMachine(alphabetSize, rotors, rotors - 2);
+        _lockstep = new Lockstep();
+        Machine model = synthetic.newMachine();
+        _machines = new Machine[MESSAGES];
+        _letters = new int[MESSAGES][LENGTH];
+        _lengths = new int[MESSAGES];
+        Alphabet alphabet = synthetic.alphabet();
+        String msg = synthetic.message(LENGTH, false);
+        for (int k = 0; k < MESSAGES; k += 1) {
+            _machines[k] = model.copy();
+            _machines[k].jumpAhead(k * STRIDE);
+            _lengths[k] = LENGTH;
+            for (int t = 0; t < LENGTH; t += 1) {
+                _letters[k][t] = alphabet.toInt(msg.charAt(t));
+            }
+        }
+    }
+
+    /** Convert every message once.  The messages are converted in place,
+     *  so each call converts the previous call's results. */
+    @Benchmark
+    public int[][] convert() {
+        _lockstep.convert(_machines, _letters, _lengths);
+        return _letters;
+    }
+
+    /** Distance between the settings of successive machines, in steps. */
+    private static final long STRIDE = 7919;
+
+    /** The converter measured. */
+    private Lockstep _lockstep;
+
+    /** One machine per message. */
+    private Machine[] _machines;
+
+    /** The messages, as alphabet indices. */
+    private int[][] _letters;
+
+    /** Length of each message. */
+    private int[] _lengths;
+}
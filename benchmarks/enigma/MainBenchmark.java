@@ -0,0 +1,91 @@
+package enigma;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** End-to-end benchmark of Main: reading a configuration file, and
+ *  converting a synthetic input file into an output file, for machines
+ *  of several shapes and inputs of several sizes.
+ *  @author Arhan Vohra
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MainBenchmark {
+
+    /** Number of characters in the alphabet. */
+    @Param({"26", "62"})
+    public int alphabetSize;
+
+    /** Number of rotor slots. */
+    @Param({"5", "8"})
+    public int rotors;
+
+    /** Number of pawls. */
+    @Param({"3"})
+    public int pawls;
+
+    /** Number of sessions in the input. */
+    @Param({"1", "1000"})
+    public int sessions;
+
+    /** Number of message lines in each session. */
+    @Param({"1000"})
+    public int lines;
+
+    /** Number of characters in each message line. */
+    static final int LINE_LENGTH = 60;
+
+    /** Write the configuration and input files for the current
+     *  parameters. */
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        SyntheticMachine synthetic =
+            new SyntheticMachine(alphabetSize, rotors, pawls);
+        _config = File.createTempFile("enigma-bench", ".conf");
+        _input = File.createTempFile("enigma-bench", ".in");
+        _output = File.createTempFile("enigma-bench", ".out");
+        Files.write(_config.toPath(),
+                    synthetic.config().getBytes(StandardCharsets.US_ASCII));
+        Files.write(_input.toPath(),
+                    synthetic.input(sessions, lines, LINE_LENGTH)
+                    .getBytes(StandardCharsets.US_ASCII));
+    }
+
+    /** Remove the files made by setUp. */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        _config.delete();
+        _input.delete();
+        _output.delete();
+    }
+
+    /** Run Main on the input file. */
+    @Benchmark
+    public void process() {
+        Main.main(_config.getPath(), _input.getPath(), _output.getPath());
+    }
+
+    /** Configuration, input and output files. */
+    private File _config, _input, _output;
+}
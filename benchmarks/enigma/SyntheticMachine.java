@@ -0,0 +1,186 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/** A randomly wired machine of a given shape, for benchmarks.  The
+ *  wiring is a fixed function of the shape, so that every run measures
+ *  the same machine.  The machine can be built directly, or written out
+ *  as a configuration file and settings line for Main.
+ *  @author Arhan Vohra
+ */
+class SyntheticMachine {
+
+    /** Characters from which alphabets are drawn. */
+    static final String CHARS =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+
+    /** A machine whose alphabet is the first SIZE characters of CHARS,
+     *  with NUMROTORS slots of which PAWLS hold moving rotors. */
+    SyntheticMachine(int size, int numRotors, int pawls) {
+        if (size > CHARS.length() || pawls >= numRotors) {
+            throw new IllegalArgumentException("bad machine shape");
+        }
+        _chars = CHARS.substring(0, size);
+        _alphabet = new Alphabet(_chars);
+        _numRotors = numRotors;
+        _pawls = pawls;
+        Random random = new Random(SEED + size * 31 + numRotors);
+        StringBuilder config = new StringBuilder();
+        config.append(_chars).append('\n');
+        config.append(' ').append(numRotors).append(' ').append(pawls);
+        config.append('\n');
+
+        _names = new String[numRotors];
+        String reflector = reflectorCycles(random);
+        _names[0] = "R0";
+        _rotors.add(new Reflector(_names[0],
+                                  new Permutation(reflector, _alphabet)));
+        config.append(" R0 R ").append(reflector).append('\n');
+        for (int i = 1; i < numRotors; i += 1) {
+            String cycles = cycles(random);
+            Permutation perm = new Permutation(cycles, _alphabet);
+            if (i < numRotors - pawls) {
+                _names[i] = "F" + i;
+                _rotors.add(new FixedRotor(_names[i], perm));
+                config.append(' ').append(_names[i]).append(" N ");
+            } else {
+                String notch = String.valueOf(
+                    _chars.charAt(random.nextInt(size)));
+                _names[i] = "M" + i;
+                _rotors.add(new MovingRotor(_names[i], perm, notch));
+                config.append(' ').append(_names[i]).append(" M")
+                    .append(notch).append(' ');
+            }
+            config.append(cycles).append('\n');
+        }
+        _config = config.toString();
+        _setting = _chars.substring(0, 1).repeat(numRotors - 1);
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return my rotors: the reflector, then the fixed rotors, then the
+     *  moving rotors. */
+    ArrayList<Rotor> rotors() {
+        return _rotors;
+    }
+
+    /** Return my first moving rotor. */
+    MovingRotor movingRotor() {
+        return (MovingRotor) _rotors.get(_numRotors - _pawls);
+    }
+
+    /** Return a new machine with all my rotors inserted, at their initial
+     *  settings, and no plugboard. */
+    Machine newMachine() {
+        Machine M = new Machine(_alphabet, _numRotors, _pawls, _rotors);
+        M.insertRotors(_names);
+        M.setRotors(_setting);
+        return M;
+    }
+
+    /** Return the text of a configuration file describing me. */
+    String config() {
+        return _config;
+    }
+
+    /** Return a settings line for an input file, inserting all my
+     *  rotors. */
+    String settingsLine() {
+        return "* " + String.join(" ", _names) + " " + _setting;
+    }
+
+    /** Return a message of LEN characters of my alphabet, broken into
+     *  words of five by blanks when WORDS. */
+    String message(int len, boolean words) {
+        Random random = new Random(SEED + len);
+        StringBuilder msg = new StringBuilder();
+        for (int i = 0; i < len; i += 1) {
+            if (words && i > 0 && i % WORD_LENGTH == 0) {
+                msg.append(' ');
+            }
+            msg.append(_chars.charAt(random.nextInt(_chars.length())));
+        }
+        return msg.toString();
+    }
+
+    /** Return an input file for Main holding SESSIONS sessions, each a
+     *  settings line followed by LINES message lines of LENGTH
+     *  characters. */
+    String input(int sessions, int lines, int length) {
+        StringBuilder input = new StringBuilder();
+        String line = message(length, true);
+        for (int s = 0; s < sessions; s += 1) {
+            input.append(settingsLine()).append('\n');
+            for (int k = 0; k < lines; k += 1) {
+                input.append(line).append('\n');
+            }
+        }
+        return input.toString();
+    }
+
+    /** Return the cycles of a random permutation of my alphabet, as a
+     *  single cycle, using RANDOM. */
+    private String cycles(Random random) {
+        return "(" + shuffled(random) + ")";
+    }
+
+    /** Return the cycles of a random permutation of my alphabet that is
+     *  its own inverse, using RANDOM.  With an odd alphabet one character
+     *  maps to itself. */
+    private String reflectorCycles(Random random) {
+        String order = shuffled(random);
+        StringBuilder cycles = new StringBuilder();
+        for (int i = 0; i + 1 < order.length(); i += 2) {
+            cycles.append('(').append(order, i, i + 2).append(") ");
+        }
+        return cycles.toString().trim();
+    }
+
+    /** Return the characters of my alphabet in an order chosen by
+     *  RANDOM. */
+    private String shuffled(Random random) {
+        char[] chars = _chars.toCharArray();
+        for (int i = chars.length - 1; i > 0; i -= 1) {
+            int j = random.nextInt(i + 1);
+            char t = chars[i];
+            chars[i] = chars[j];
+            chars[j] = t;
+        }
+        return new String(chars);
+    }
+
+    /** Seed for all random choices. */
+    private static final long SEED = 61;
+
+    /** Number of characters between blanks in messages. */
+    private static final int WORD_LENGTH = 5;
+
+    /** The characters of my alphabet. */
+    private final String _chars;
+
+    /** My alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Number of slots. */
+    private final int _numRotors;
+
+    /** Number of pawls. */
+    private final int _pawls;
+
+    /** Name of the rotor in each slot. */
+    private final String[] _names;
+
+    /** All my rotors, by slot. */
+    private final ArrayList<Rotor> _rotors = new ArrayList<>();
+
+    /** Text of my configuration file. */
+    private final String _config;
+
+    /** Initial setting of my rotors. */
+    private final String _setting;
+}
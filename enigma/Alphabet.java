@@ -1,4 +1,7 @@
 package enigma;
+
+import static enigma.EnigmaException.error;
+
 /** An alphabet of encodable characters.  Provides a mapping from characters
  *  to and from indices into the alphabet.
  *  @author Arhan Vohra
@@ -7,21 +10,33 @@ class Alphabet {
     /** A new alphabet containing CHARS. The K-th character has index
      *  K (numbering from 0). No character may be duplicated. */
     Alphabet(String chars) {
-        /** Constructs the Alphabet object, which contains the characters CHARS
-         * in a String. Initiates boolean FALSE and loops over both CHARS and
-         * CHARCONTAINER to check if the i-th letter in CHARS
-         * is in CHARCONTAINER. If not, it is added to the String. */
-        boolean seen = false;
+        /** Builds a direct-mapped table from each character to its index,
+         *  just large enough to hold the largest character in CHARS, so
+         *  that lookups never scan the alphabet. */
+        charContainer = chars;
+        char max = 0;
         for (int i = 0; i < chars.length(); i++) {
-            for (int a = 0; a < i; a++) {
-                if (chars.charAt(i) == charContainer.charAt(a)) {
-                    seen = true;
-                    break;
-                }
-            }
-            if (!seen) {
-                charContainer += chars.charAt(i);
+            max = (char) Math.max(max, chars.charAt(i));
+        }
+        _index = new int[chars.length() == 0 ? 0 : max + 1];
+        for (int i = 0; i < _index.length; i++) {
+            _index[i] = -1;
+        }
+        for (int i = 0; i < chars.length(); i++) {
+            char ch = chars.charAt(i);
+            if (_index[ch] >= 0) {
+                throw error("duplicate character '%c' in alphabet", ch);
             }
+            _index[ch] = i;
+        }
+        _byteIndex = new int[BYTE_VALUES];
+        for (int b = 0; b < BYTE_VALUES; b++) {
+            _byteIndex[b] = b < ASCII && b < _index.length ? _index[b] : -1;
+        }
+        _ascii = _index.length <= ASCII;
+        _asciiBytes = new byte[_ascii ? chars.length() : 0];
+        for (int i = 0; i < _asciiBytes.length; i++) {
+            _asciiBytes[i] = (byte) chars.charAt(i);
         }
     }
 
@@ -38,15 +53,7 @@ class Alphabet {
 
     /** Returns true if CH is in this alphabet. */
     boolean contains(char ch) {
-        /** Loops over characters in ALPHABET and returns true
-         *  if CH is detected. */
-        boolean seen = false;
-        for (int i = 0; i < this.size(); i++) {
-            if (this.charContainer.charAt(i) == ch) {
-                return true;
-            }
-        }
-        return false;
+        return ch < _index.length && _index[ch] >= 0;
     }
 
     /** Returns character number INDEX in the alphabet, where
@@ -60,15 +67,37 @@ class Alphabet {
     /** Returns the index of character CH which must be in
      *  the alphabet. This is the inverse of toChar(). */
     int toInt(char ch) {
-        /** Uses toChar(int) to iteratively search for CH
-         *  in the current alphabet. */
-        int found = 0;
-        for (int i = 0; i < this.size(); i++) {
-            if (this.toChar(i) == ch) {
-                found = i;
-            }
+        if (ch >= _index.length || _index[ch] < 0) {
+            throw error("character '%c' not in alphabet", ch);
+        }
+        return _index[ch];
+    }
+
+    /** Returns true iff all my characters are ASCII, so that each can be
+     *  handled as a single byte. */
+    boolean isAscii() {
+        return _ascii;
+    }
+
+    /** Returns the index of the ASCII character B, which must be in the
+     *  alphabet.  Bytes outside the ASCII range are never in the
+     *  alphabet. */
+    int toInt(byte b) {
+        int k = _byteIndex[b & BYTE_MASK];
+        if (k < 0) {
+            throw error("character '%c' not in alphabet",
+                        (char) (b & BYTE_MASK));
         }
-        return found;
+        return k;
+    }
+
+    /** Returns character number INDEX in the alphabet as a byte, where
+     *  0 <= INDEX < size().  The alphabet must be ASCII. */
+    byte toByte(int index) {
+        if (!_ascii) {
+            throw error("alphabet is not ASCII");
+        }
+        return _asciiBytes[index];
     }
 
     /** Accessor method for the entire Alphabet String.
@@ -78,6 +107,31 @@ class Alphabet {
     }
 
     /** Initiates variable charContainer. */
-    private String charContainer = "";
+    private final String charContainer;
+
+    /** Maps each character C of this alphabet to its index; all other
+     *  entries below the largest character are -1. */
+    private final int[] _index;
+
+    /** Maps each byte value, taken as unsigned, to the index of the ASCII
+     *  character with that code, or -1 if there is none in the
+     *  alphabet. */
+    private final int[] _byteIndex;
+
+    /** True iff every character of the alphabet is ASCII. */
+    private final boolean _ascii;
+
+    /** The characters of the alphabet as bytes, if it is ASCII, and
+     *  otherwise empty. */
+    private final byte[] _asciiBytes;
+
+    /** Number of ASCII characters. */
+    private static final int ASCII = 128;
+
+    /** Number of distinct byte values. */
+    private static final int BYTE_VALUES = 256;
+
+    /** Mask selecting the low eight bits of an int. */
+    private static final int BYTE_MASK = 0xff;
 
 }
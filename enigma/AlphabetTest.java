@@ -33,4 +33,44 @@ public class AlphabetTest {
         assertEquals(differentAlphabet.toChar(testAlphabet.toInt('D')), 'X');
         assertEquals(testAlphabet.toChar(8), 'I');
     }
+
+    @Test
+    /** Checks that every character round-trips through its index, and
+     *  that lookups of characters outside the alphabet are rejected. */
+    public void testLookupTable() {
+        Alphabet sparse = new Alphabet("z0A!");
+        for (int i = 0; i < sparse.size(); i++) {
+            assertEquals(sparse.toInt(sparse.toChar(i)), i);
+        }
+        assertFalse(sparse.contains('B'));
+        assertFalse(sparse.contains('\uffff'));
+        try {
+            sparse.toInt('B');
+            fail("toInt accepted a character outside the alphabet");
+        } catch (EnigmaException excp) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    /** Checks the byte lookups of ASCII alphabets, and that alphabets
+     *  with other characters are not treated as ASCII. */
+    public void testBytes() {
+        assertTrue(differentAlphabet.isAscii());
+        assertEquals(differentAlphabet.toInt((byte) 'Y'), 4);
+        assertEquals(differentAlphabet.toByte(3), (byte) 'X');
+        try {
+            testAlphabet.toInt((byte) 0xc3);
+            fail("toInt accepted a byte outside the ASCII range");
+        } catch (EnigmaException excp) {
+            /* Expected. */
+        }
+        assertFalse(new Alphabet("AB\u00df").isAscii());
+    }
+
+    @Test(expected = EnigmaException.class)
+    /** Checks that duplicated characters are rejected. */
+    public void testDuplicate() {
+        new Alphabet("ABCA");
+    }
 }
@@ -0,0 +1,273 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static enigma.EnigmaException.error;
+
+/** A binary file holding a compiled machine configuration: the alphabet,
+ *  the slot and pawl counts, and each rotor's name, conversion tables and
+ *  notches, ready to use without parsing any cycles.  The file records a
+ *  digest of the text of the configuration it was compiled from, and is
+ *  only used while that text is unchanged, so editing the configuration
+ *  file makes the next run recompile it.  The whole file is read with a
+ *  single mapping.
+ *
+ *  Layout (all numbers big-endian): MAGIC, VERSION, the digest, the
+ *  alphabet as a length and characters, the numbers of slots and pawls,
+ *  and the number of rotors; then for each rotor its name as a length and
+ *  characters, a flags byte (ROTATES | REFLECTS), its notches as a count
+ *  of longs and a bit set, and its forward and backward tables, each as
+ *  a length and ints.
+ *  @author Arhan Vohra
+ */
+class ConfigCache {
+
+    /** Return the digest identifying the configuration text CONFIG. */
+    static byte[] digest(byte[] config) {
+        try {
+            return MessageDigest.getInstance(DIGEST).digest(config);
+        } catch (NoSuchAlgorithmException excp) {
+            throw error("no %s digest available", DIGEST);
+        }
+    }
+
+    /** Return the machine description in the compiled configuration file
+     *  FILE, or null if FILE does not exist, is unreadable or damaged, or
+     *  was not compiled from a configuration whose digest is DIGEST. */
+    static MachineSpec load(Path file, byte[] digest) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(file)) {
+            MappedByteBuffer buf =
+                in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            return read(buf, digest);
+        } catch (IOException | BufferUnderflowException
+                 | IllegalArgumentException | EnigmaException excp) {
+            return null;
+        }
+    }
+
+    /** Write SPEC, compiled from a configuration whose digest is DIGEST,
+     *  to FILE.  The file is replaced atomically where possible, so that
+     *  other processes never see it half written.  Failure to write is
+     *  not an error: the configuration is simply compiled again next
+     *  time. */
+    static void save(Path file, byte[] digest, MachineSpec spec) {
+        ByteBuffer buf = ByteBuffer.allocate(size(spec, digest.length));
+        buf.putInt(MAGIC).putInt(VERSION);
+        buf.put(digest);
+        putString(buf, alphabetString(spec.alphabet()));
+        buf.putInt(spec.numRotors()).putInt(spec.numPawls());
+        buf.putInt(spec.rotors().size());
+        for (RotorSpec r : spec.rotors()) {
+            putString(buf, r.name());
+            buf.put((byte) ((r.rotates() ? ROTATES : 0)
+                            | (r.reflecting() ? REFLECTS : 0)));
+            long[] notches = notchBits(r.notches());
+            buf.putInt(notches.length);
+            for (long word : notches) {
+                buf.putLong(word);
+            }
+            putInts(buf, r.forwardTable());
+            putInts(buf, r.backwardTable());
+        }
+        buf.flip();
+        writeAtomically(file, buf);
+    }
+
+    /** Replace FILE with the remaining bytes of BUF, atomically where
+     *  possible, so that other processes never see it half written.
+     *  Failure to write is ignored. */
+    static void writeAtomically(Path file, ByteBuffer buf) {
+        Path temp = null;
+        try {
+            temp = file.resolveSibling(file.getFileName() + "."
+                                       + ProcessHandle.current().pid()
+                                       + ".tmp");
+            try (FileChannel out =
+                     FileChannel.open(temp, StandardOpenOption.CREATE_NEW,
+                                      StandardOpenOption.WRITE)) {
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE,
+                           StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException excp) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | SecurityException excp) {
+            if (temp != null) {
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    /* Nothing more to do. */
+                }
+            }
+        }
+    }
+
+    /** Return the machine description in BUF, or null if BUF does not
+     *  start with MAGIC, VERSION and DIGEST.  Throws an exception if BUF
+     *  is damaged. */
+    private static MachineSpec read(ByteBuffer buf, byte[] digest) {
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            return null;
+        }
+        byte[] recorded = new byte[digest.length];
+        buf.get(recorded);
+        if (!Arrays.equals(recorded, digest)) {
+            return null;
+        }
+        Alphabet alphabet = new Alphabet(getString(buf));
+        int n = alphabet.size();
+        int numRotors = buf.getInt();
+        int numPawls = buf.getInt();
+        RotorSpec[] rotors = new RotorSpec[count(buf)];
+        for (int i = 0; i < rotors.length; i++) {
+            String name = getString(buf);
+            int flags = buf.get();
+            long[] bits = new long[count(buf)];
+            for (int w = 0; w < bits.length; w++) {
+                bits[w] = buf.getLong();
+            }
+            boolean rotates = (flags & ROTATES) != 0;
+            int tableSize = rotates ? n * n : n;
+            int[] forward = getTable(buf, tableSize, n);
+            int[] backward = getTable(buf, tableSize, n);
+            rotors[i] = new RotorSpec(name, alphabet, rotates,
+                                      (flags & REFLECTS) != 0,
+                                      notches(bits, n), forward, backward);
+        }
+        if (buf.hasRemaining()) {
+            return null;
+        }
+        return new MachineSpec(alphabet, numRotors, numPawls, rotors);
+    }
+
+    /** Return the number of bytes needed to save SPEC with a digest of
+     *  DIGESTLENGTH bytes. */
+    private static int size(MachineSpec spec, int digestLength) {
+        int n = spec.alphabet().size();
+        int size = 2 * Integer.BYTES + digestLength
+            + Integer.BYTES + Character.BYTES * n + 3 * Integer.BYTES;
+        for (RotorSpec r : spec.rotors()) {
+            size += Integer.BYTES + Character.BYTES * r.name().length()
+                + 1 + Integer.BYTES
+                + Long.BYTES * notchBits(r.notches()).length
+                + 2 * Integer.BYTES
+                + Integer.BYTES * (r.forwardTable().length
+                                   + r.backwardTable().length);
+        }
+        return size;
+    }
+
+    /** Return the characters of ALPHABET, in order. */
+    static String alphabetString(Alphabet alphabet) {
+        StringBuilder chars = new StringBuilder();
+        for (int k = 0; k < alphabet.size(); k++) {
+            chars.append(alphabet.toChar(k));
+        }
+        return chars.toString();
+    }
+
+    /** Return NOTCHES as a bit set. */
+    private static long[] notchBits(boolean[] notches) {
+        long[] bits = new long[(notches.length + Long.SIZE - 1) / Long.SIZE];
+        for (int k = 0; k < notches.length; k++) {
+            if (notches[k]) {
+                bits[k / Long.SIZE] |= 1L << (k % Long.SIZE);
+            }
+        }
+        return bits;
+    }
+
+    /** Return the first N bits of BITS as an array of booleans. */
+    private static boolean[] notches(long[] bits, int n) {
+        if (bits.length * Long.SIZE < n) {
+            throw new IllegalArgumentException("short notch set");
+        }
+        boolean[] notches = new boolean[n];
+        for (int k = 0; k < n; k++) {
+            notches[k] = (bits[k / Long.SIZE] & (1L << (k % Long.SIZE))) != 0;
+        }
+        return notches;
+    }
+
+    /** Append the length and characters of S to BUF. */
+    static void putString(ByteBuffer buf, String s) {
+        buf.putInt(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            buf.putChar(s.charAt(i));
+        }
+    }
+
+    /** Return the string stored by putString at the position of BUF. */
+    static String getString(ByteBuffer buf) {
+        char[] chars = new char[count(buf)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = buf.getChar();
+        }
+        return new String(chars);
+    }
+
+    /** Append the length and elements of TABLE to BUF. */
+    private static void putInts(ByteBuffer buf, int[] table) {
+        buf.putInt(table.length);
+        for (int x : table) {
+            buf.putInt(x);
+        }
+    }
+
+    /** Return the table stored by putInts at the position of BUF, which
+     *  must have SIZE entries, each in the range 0 .. N-1. */
+    private static int[] getTable(ByteBuffer buf, int size, int n) {
+        if (buf.getInt() != size) {
+            throw new IllegalArgumentException("bad table size");
+        }
+        int[] table = new int[size];
+        buf.asIntBuffer().get(table);
+        buf.position(buf.position() + Integer.BYTES * size);
+        for (int x : table) {
+            if (x < 0 || x >= n) {
+                throw new IllegalArgumentException("bad table entry");
+            }
+        }
+        return table;
+    }
+
+    /** Return the count at the position of BUF, which must not exceed
+     *  the bytes remaining. */
+    static int count(ByteBuffer buf) {
+        int count = buf.getInt();
+        if (count < 0 || count > buf.remaining()) {
+            throw new IllegalArgumentException("bad count");
+        }
+        return count;
+    }
+
+    /** First four bytes of a compiled configuration file: "ENGM". */
+    private static final int MAGIC = 0x454e474d;
+
+    /** Version of the layout of compiled configuration files. */
+    private static final int VERSION = 2;
+
+    /** Name of the digest algorithm identifying configurations. */
+    private static final String DIGEST = "SHA-256";
+
+    /** Flag bits for rotors that rotate and that reflect. */
+    private static final int ROTATES = 1, REFLECTS = 2;
+}
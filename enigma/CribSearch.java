@@ -0,0 +1,450 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static enigma.EnigmaException.error;
+
+/** A known-plaintext search, in the manner of the Turing-Welchman Bombe,
+ *  for the settings under which a crib enciphers to a stretch of
+ *  ciphertext.  Every order of a configuration's rotors (a reflector,
+ *  then non-moving rotors, then moving rotors) and every starting setting
+ *  of its moving rotors is tried.  Fixed rotors are left at their first
+ *  setting, which does not affect them.
+ *
+ *  The plugboard, assumed to consist of swapped pairs, is not enumerated.
+ *  Instead the crib and ciphertext form a menu: a graph whose edges join
+ *  the plain and cipher letters at each position.  If the plugboard takes
+ *  a menu letter U to Y, then at each edge from U to V the scrambler (the
+ *  rotors without the plugboard) takes Y to the partner of V, so one
+ *  hypothesis about U's partner fixes the partners of every letter
+ *  connected to it.  A setting survives only if some hypothesis for each
+ *  part of the menu leads to no letter having two partners; loops in the
+ *  menu make this rare for wrong settings.  Survivors are checked by
+ *  enciphering the crib with a Machine before being reported.
+ *
+ *  The settings are divided among the threads of a ForkJoinPool, which
+ *  keeps threads that finish early busy by stealing work.  Each worker
+ *  keeps the scrambler at each crib position in a Scrambler.
+ *  @author Arhan Vohra
+ */
+class CribSearch {
+
+    /** Most candidate settings reported by one search. */
+    static final int MAX_CANDIDATES = 1000;
+
+    /** A search of the rotors of SPEC for settings under which CRIB
+     *  enciphers to the characters of CIPHERTEXT starting at OFFSET. */
+    CribSearch(MachineSpec spec, String ciphertext, String crib,
+               int offset) {
+        _spec = spec;
+        _alphabet = spec.alphabet();
+        _size = _alphabet.size();
+        _last = spec.numRotors() - 1;
+        _identity = new Permutation("", _alphabet);
+        if (crib.isEmpty() || offset < 0
+            || offset > ciphertext.length() - crib.length()) {
+            throw error("crib does not fit in the ciphertext");
+        }
+        _offset = offset;
+        _plain = new int[crib.length()];
+        _cipher = new int[crib.length()];
+        for (int k = 0; k < crib.length(); k++) {
+            _plain[k] = letter(crib.charAt(k));
+            _cipher[k] = letter(ciphertext.charAt(offset + k));
+        }
+        _rotates = Scrambler.movingSlots(spec);
+        long innerStarts = 1;
+        for (int i = 1; i < _last; i++) {
+            if (_rotates[i]) {
+                if (innerStarts > Long.MAX_VALUE / _size) {
+                    throw error("too many settings to search");
+                }
+                innerStarts *= _size;
+            }
+        }
+        _innerStarts = innerStarts;
+        _fastStarts = _rotates[_last] ? _size : 1;
+        _orders = Scrambler.orders(spec);
+        if (_orders.size() > Long.MAX_VALUE / _innerStarts) {
+            throw error("too many settings to search");
+        }
+        makeMenu();
+    }
+
+    /** Search all settings on POOL, and return a settings line, as in a
+     *  message file, for each setting under which the crib enciphers as
+     *  required, in order of rotor order and then starting setting.  At
+     *  most MAX_CANDIDATES lines are returned. */
+    List<String> run(ForkJoinPool pool) {
+        _searched.reset();
+        _candidates.reset();
+        long start = System.nanoTime();
+        List<String> found =
+            pool.invoke(new Part(0, _orders.size() * _innerStarts));
+        _nanos = System.nanoTime() - start;
+        return found.size() > MAX_CANDIDATES
+            ? found.subList(0, MAX_CANDIDATES) : found;
+    }
+
+    /** Return a description of the extent and speed of the last run. */
+    String summary() {
+        double seconds = (double) _nanos / TimeUnit.SECONDS.toNanos(1);
+        long searched = _searched.sum();
+        long found = _candidates.sum();
+        return String.format("searched %d rotor orders, %d settings in"
+                             + " %.3f s (%.0f settings/s); %d candidates%s",
+                             _orders.size(), searched, seconds,
+                             seconds > 0 ? searched / seconds : 0.0,
+                             found,
+                             found > MAX_CANDIDATES
+                             ? " (first " + MAX_CANDIDATES + " shown)"
+                             : "");
+    }
+
+    /** Return the index of CH in my alphabet. */
+    private int letter(char ch) {
+        if (!_alphabet.contains(ch)) {
+            throw error("character '%c' not in alphabet", ch);
+        }
+        return _alphabet.toInt(ch);
+    }
+
+    /** Make the menu: the edges leaving each letter, and a starting letter
+     *  for each connected part of it, most connected parts first. */
+    private void makeMenu() {
+        int n = _plain.length;
+        int[] degree = new int[_size];
+        for (int k = 0; k < n; k++) {
+            degree[_plain[k]] += 1;
+            degree[_cipher[k]] += 1;
+        }
+        _edgeStart = new int[_size + 1];
+        for (int u = 0; u < _size; u++) {
+            _edgeStart[u + 1] = _edgeStart[u] + degree[u];
+        }
+        _edgeTo = new int[2 * n];
+        _edgeStep = new int[2 * n];
+        _edgeForward = new boolean[2 * n];
+        int[] next = Arrays.copyOf(_edgeStart, _size);
+        for (int k = 0; k < n; k++) {
+            int e = next[_plain[k]]++;
+            _edgeTo[e] = _cipher[k];
+            _edgeStep[e] = k;
+            _edgeForward[e] = true;
+            e = next[_cipher[k]]++;
+            _edgeTo[e] = _plain[k];
+            _edgeStep[e] = k;
+            _edgeForward[e] = false;
+        }
+
+        int[] part = new int[_size];
+        Arrays.fill(part, -1);
+        ArrayList<int[]> parts = new ArrayList<>();
+        int[] stack = new int[_size];
+        for (int u = 0; u < _size; u++) {
+            if (degree[u] == 0 || part[u] >= 0) {
+                continue;
+            }
+            int best = u, edges = 0, top = 0;
+            part[u] = parts.size();
+            stack[top++] = u;
+            while (top > 0) {
+                int v = stack[--top];
+                edges += degree[v];
+                if (degree[v] > degree[best]) {
+                    best = v;
+                }
+                for (int e = _edgeStart[v]; e < _edgeStart[v + 1]; e++) {
+                    if (part[_edgeTo[e]] < 0) {
+                        part[_edgeTo[e]] = parts.size();
+                        stack[top++] = _edgeTo[e];
+                    }
+                }
+            }
+            parts.add(new int[] { best, edges });
+        }
+        parts.sort((a, b) -> b[1] - a[1]);
+        _menuStarts = new int[parts.size()];
+        for (int p = 0; p < _menuStarts.length; p++) {
+            _menuStarts[p] = parts.get(p)[0];
+        }
+    }
+
+    /** The search of the settings numbered LO to HI-1, where setting
+     *  number K has rotor order K / _innerStarts and the K % _innerStarts
+     *  th starting setting of the moving rotors other than the fast one,
+     *  together with every starting setting of the fast rotor.  Splits
+     *  itself in two until small. */
+    private class Part extends RecursiveTask<List<String>> {
+
+        /** A search of the settings numbered LO to HI-1. */
+        Part(long lo, long hi) {
+            _lo = lo;
+            _hi = hi;
+        }
+
+        @Override
+        protected List<String> compute() {
+            if (_hi - _lo > LEAF_SIZE) {
+                long mid = _lo + (_hi - _lo) / 2;
+                Part left = new Part(_lo, mid);
+                left.fork();
+                List<String> right = new Part(mid, _hi).compute();
+                List<String> found = left.join();
+                if (found.size() < MAX_CANDIDATES) {
+                    found.addAll(right);
+                }
+                return found;
+            }
+            return new Worker().search(_lo, _hi);
+        }
+
+        /** Bounds of my settings. */
+        private final long _lo, _hi;
+    }
+
+    /** The state of one thread's search. */
+    private class Worker {
+
+        /** Search the settings numbered LO to HI-1 (see Part), returning
+         *  the settings lines of those that survive. */
+        List<String> search(long lo, long hi) {
+            ArrayList<String> found = new ArrayList<>();
+            int current = -1;
+            int[] start = new int[_last + 1];
+            for (long k = lo; k < hi; k++) {
+                int order = (int) (k / _innerStarts);
+                if (order != current) {
+                    current = order;
+                    useOrder(order);
+                }
+                long inner = k % _innerStarts;
+                for (int i = _last - 1; i > 0; i--) {
+                    if (_rotates[i]) {
+                        start[i] = (int) (inner % _size);
+                        inner /= _size;
+                    }
+                }
+                _scrambler.newStart();
+                for (int fast = 0; fast < _fastStarts; fast++) {
+                    start[_last] = fast;
+                    if (survives(start) && confirmed(start)) {
+                        _candidates.increment();
+                        if (found.size() < MAX_CANDIDATES) {
+                            found.add(settingsLine(order, start));
+                        }
+                    }
+                    clearPlugboard();
+                }
+                _searched.add(_fastStarts);
+            }
+            return found;
+        }
+
+        /** Prepare to search the rotor order numbered ORDER. */
+        private void useOrder(int order) {
+            _scrambler.useOrder(_orders.get(order));
+        }
+
+        /** Return true iff, with the rotors at START, some plugboard
+         *  agrees with the menu, leaving such a plugboard in
+         *  _partner. */
+        private boolean survives(int[] start) {
+            _scrambler.setUp(start, _offset);
+            return solve(0);
+        }
+
+        /** Return true iff the menu parts numbered PART and after agree
+         *  with some plugboard extending _partner, leaving the first such
+         *  plugboard found in _partner. */
+        private boolean solve(int part) {
+            if (part == _menuStarts.length) {
+                return true;
+            }
+            int u = _menuStarts[part];
+            if (_partner[u] >= 0) {
+                return solve(part + 1);
+            }
+            for (int y = 0; y < _size; y++) {
+                int mark = _trailLength;
+                _queueLength = 0;
+                if (pair(u, y) && propagate() && solve(part + 1)) {
+                    return true;
+                }
+                undo(mark);
+            }
+            return false;
+        }
+
+        /** Record that the plugboard swaps U and Y, returning false if
+         *  that contradicts what is already recorded. */
+        private boolean pair(int u, int y) {
+            if (_partner[u] == y) {
+                return true;
+            }
+            if (_partner[u] >= 0 || _partner[y] >= 0) {
+                return false;
+            }
+            _partner[u] = y;
+            _partner[y] = u;
+            _trail[_trailLength++] = u;
+            _queue[_queueLength++] = u;
+            if (y != u) {
+                _trail[_trailLength++] = y;
+                _queue[_queueLength++] = y;
+            }
+            return true;
+        }
+
+        /** Follow the menu edges of the letters in _queue, pairing their
+         *  far ends, until _queue is empty or a contradiction is found;
+         *  returns false in the latter case. */
+        private boolean propagate() {
+            while (_queueLength > 0) {
+                int u = _queue[--_queueLength];
+                int y = _partner[u];
+                for (int e = _edgeStart[u]; e < _edgeStart[u + 1]; e++) {
+                    int z = _edgeForward[e]
+                        ? _scrambler.convert(_edgeStep[e], y)
+                        : _scrambler.invert(_edgeStep[e], y);
+                    if (!pair(_edgeTo[e], z)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Forget the pairs recorded since _trail had length MARK. */
+        private void undo(int mark) {
+            while (_trailLength > mark) {
+                _partner[_trail[--_trailLength]] = -1;
+            }
+        }
+
+        /** Forget all pairs. */
+        private void clearPlugboard() {
+            undo(0);
+        }
+
+        /** Return true iff a machine with the rotors at START and the
+         *  plugboard in _partner enciphers the crib to the ciphertext. */
+        private boolean confirmed(int[] start) {
+            Machine M = _scrambler.machine();
+            M.restore(start);
+            M.setPlugboard(new Permutation(cycles(), _alphabet));
+            Scrambler.advance(M, _offset);
+            boolean ok = true;
+            for (int k = 0; k < _plain.length && ok; k++) {
+                ok = M.convert(_plain[k]) == _cipher[k];
+            }
+            M.setPlugboard(_identity);
+            return ok;
+        }
+
+        /** Return the swapped pairs in _partner in cycle notation. */
+        private String cycles() {
+            return Scrambler.cycles(_partner, _alphabet);
+        }
+
+        /** Return the settings line for rotor order ORDER, the rotors at
+         *  START, and the plugboard in _partner. */
+        private String settingsLine(int order, int[] start) {
+            return Scrambler.settingsLine(_orders.get(order), start,
+                                          cycles(), _alphabet);
+        }
+
+        /** The scrambler at each crib position. */
+        private final Scrambler _scrambler =
+            new Scrambler(_spec, _plain.length);
+
+        /** Plugboard partner of each letter, or -1 if not yet known. */
+        private final int[] _partner = filled(_size, -1);
+
+        /** Letters whose partners were recorded, in order. */
+        private final int[] _trail = new int[_size];
+
+        /** Number of letters in _trail. */
+        private int _trailLength;
+
+        /** Letters whose menu edges are yet to be followed. */
+        private final int[] _queue = new int[_size];
+
+        /** Number of letters in _queue. */
+        private int _queueLength;
+    }
+
+    /** Return an array of N copies of VALUE. */
+    private static int[] filled(int n, int value) {
+        int[] result = new int[n];
+        Arrays.fill(result, value);
+        return result;
+    }
+
+    /** Number of starting settings of the slower moving rotors searched
+     *  by each task that is not split further. */
+    private static final long LEAF_SIZE = 16;
+
+    /** A plugboard that swaps nothing. */
+    private final Permutation _identity;
+
+    /** Description of the machines searched. */
+    private final MachineSpec _spec;
+
+    /** Their alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Size of _alphabet. */
+    private final int _size;
+
+    /** Slot of the fast rotor. */
+    private final int _last;
+
+    /** Position of the crib in the ciphertext. */
+    private final int _offset;
+
+    /** The crib, and the ciphertext it enciphers to, as indices. */
+    private final int[] _plain, _cipher;
+
+    /** _rotates[I] is true iff slot I holds a moving rotor. */
+    private final boolean[] _rotates;
+
+    /** Number of starting settings of the moving rotors other than the
+     *  fast one. */
+    private final long _innerStarts;
+
+    /** Number of starting settings of the fast rotor. */
+    private final int _fastStarts;
+
+    /** Every order of rotors to be tried. */
+    private final List<RotorSpec[]> _orders;
+
+    /** The edges leaving letter U are numbered _edgeStart[U] to
+     *  _edgeStart[U+1]-1. */
+    private int[] _edgeStart;
+
+    /** Far end of each edge, and the crib position it comes from. */
+    private int[] _edgeTo, _edgeStep;
+
+    /** True for edges from a crib letter to a cipher letter, which
+     *  follow the scrambler forward; false for those going back. */
+    private boolean[] _edgeForward;
+
+    /** A letter of each connected part of the menu. */
+    private int[] _menuStarts;
+
+    /** Number of settings searched. */
+    private final LongAdder _searched = new LongAdder();
+
+    /** Duration of the last run, in nanoseconds. */
+    private long _nanos;
+
+    /** Number of candidates found. */
+    private final LongAdder _candidates = new LongAdder();
+}
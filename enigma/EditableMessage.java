@@ -0,0 +1,143 @@
+package enigma;
+
+import java.util.ArrayList;
+
+import static enigma.EnigmaException.error;
+
+/** A message converted by a Machine that may be edited or extended after
+ *  conversion, reconverting only what the edit affects.  As the message is
+ *  converted, the settings of the machine's rotors are recorded every
+ *  INTERVAL letters (checkpoints).  Since blanks do not move the rotors,
+ *  the settings at a letter depend only on the number of letters before
+ *  it, so checkpoints stay valid whatever the edits.  An edit at character
+ *  START changes which letters follow START, so everything from START on
+ *  is reconverted, starting from the last checkpoint before START and
+ *  stepping at most INTERVAL-1 letters to reach it; the text before START
+ *  is left as it was.  Appending is an edit at the end, and so costs only
+ *  the conversion of the new text.
+ *  @author Arhan Vohra
+ */
+class EditableMessage {
+
+    /** An empty message to be converted by MACHINE, which must have been
+     *  set up for it, recording checkpoints every INTERVAL letters.
+     *  MACHINE itself is not changed. */
+    EditableMessage(Machine machine, int interval) {
+        if (interval < 1) {
+            throw error("bad checkpoint interval: %d", interval);
+        }
+        _machine = machine.copy();
+        _interval = interval;
+        _checkpoints.add(_machine.stateAt(0));
+    }
+
+    /** Append TEXT to the message. */
+    void append(String text) {
+        replace(_input.length(), _input.length(), text);
+    }
+
+    /** Replace characters START to END-1 of the message by TEXT.  If
+     *  TEXT has a character that is neither a blank nor in the machine's
+     *  alphabet, the message is left unchanged. */
+    void replace(int start, int end, String text) {
+        if (start < 0 || end < start || end > _input.length()) {
+            throw error("bad range of message: %d to %d", start, end);
+        }
+        Alphabet alphabet = _machine.spec().alphabet();
+        for (int k = 0; k < text.length(); k++) {
+            char ch = text.charAt(k);
+            if (ch != ' ' && !alphabet.contains(ch)) {
+                throw error("character '%c' not in alphabet", ch);
+            }
+        }
+        int before = start * 2 > _input.length()
+            ? _letters - letters(start, _input.length()) : letters(0, start);
+        _input.replace(start, end, text);
+        if (_output.length < _input.length()) {
+            char[] output = new char[Math.max(_input.length(),
+                                              2 * _output.length)];
+            System.arraycopy(_output, 0, output, 0, start);
+            _output = output;
+        }
+        reconvert(start, before);
+    }
+
+    /** Return the message as given. */
+    String input() {
+        return _input.toString();
+    }
+
+    /** Return the conversion of the message. */
+    String output() {
+        return new String(_output, 0, _input.length());
+    }
+
+    /** Return the number of characters converted by the last edit,
+     *  counting the letters stepped over from a checkpoint. */
+    int lastConverted() {
+        return _lastConverted;
+    }
+
+    /** Convert the message from character START, which follows BEFORE
+     *  letters, to its end, adding checkpoints as they are reached. */
+    private void reconvert(int start, int before) {
+        int checkpoint = Math.min(before / _interval, _checkpoints.size() - 1);
+        _machine.restore(_checkpoints.get(checkpoint));
+        int letters = checkpoint * _interval;
+        _lastConverted = before - letters;
+        for (; letters < before; letters++) {
+            _machine.advanceMachine();
+        }
+        int len = _input.length();
+        char[] input = new char[len - start];
+        _input.getChars(start, len, input, 0);
+        int k = 0;
+        while (k < input.length) {
+            int next = (letters / _interval + 1) * _interval;
+            int end = k;
+            while (end < input.length && letters < next) {
+                letters += input[end] == ' ' ? 0 : 1;
+                end += 1;
+            }
+            _machine.convert(input, k, end - k, _output, start + k);
+            if (letters == next && next / _interval == _checkpoints.size()) {
+                _checkpoints.add(_machine.stateAt(0));
+            }
+            k = end;
+        }
+        _lastConverted += input.length;
+        _letters = letters;
+    }
+
+    /** Return the number of letters (non-blanks) in characters START to
+     *  END-1 of the message. */
+    private int letters(int start, int end) {
+        int letters = 0;
+        for (int k = start; k < end; k++) {
+            letters += _input.charAt(k) == ' ' ? 0 : 1;
+        }
+        return letters;
+    }
+
+    /** The machine converting the message, a copy of the one given. */
+    private final Machine _machine;
+
+    /** Number of letters between checkpoints. */
+    private final int _interval;
+
+    /** The settings of _machine's rotors after each multiple of _interval
+     *  letters reached so far, starting with none. */
+    private final ArrayList<int[]> _checkpoints = new ArrayList<>();
+
+    /** The message as given. */
+    private final StringBuilder _input = new StringBuilder();
+
+    /** Its conversion, in the first _input.length() characters. */
+    private char[] _output = new char[0];
+
+    /** Number of letters in _input. */
+    private int _letters;
+
+    /** Number of characters converted by the last edit. */
+    private int _lastConverted;
+}
@@ -0,0 +1,280 @@
+package enigma;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiConsumer;
+
+import static enigma.EnigmaException.error;
+
+/** A server that converts messages for clients connecting over a Unix
+ *  domain socket or a TCP port on the loopback interface, so that a
+ *  configuration is read once however many jobs use it.  Each connection
+ *  is served by its own thread with its own machine, copied from a
+ *  template, so connections never share settings.
+ *
+ *  The protocol is line-oriented, in the platform's default encoding.  A
+ *  request is a settings line, as in a message file, then a line holding
+ *  a count N, then N message lines.  The reply is either "OK N" followed
+ *  by the N converted lines, grouped as Main prints them (lines that are
+ *  entirely blank are returned empty), or a single line "ERROR MESSAGE".
+ *  As in a message file, a settings line without a plugboard keeps the
+ *  plugboard of the connection's previous request.  Requests may be
+ *  pipelined: replies come back in order, and are flushed whenever no
+ *  further request is already waiting.  A connection ends when the
+ *  client closes it, or after replying ERROR to a count that is not a
+ *  number.
+ *  @author Arhan Vohra
+ */
+class EnigmaServer {
+
+    /** A server whose connections use copies of TEMPLATE, calling SETUP
+     *  on a connection's machine and each request's settings line, and
+     *  printing messages in groups of GROUP characters. */
+    EnigmaServer(Machine template, BiConsumer<Machine, String> setUp,
+                 int group) {
+        _template = template;
+        _setUp = setUp;
+        _group = group;
+        _workers = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "enigma-connection");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /** Return a channel listening at ADDRESS, which is either "unix:PATH"
+     *  for a Unix domain socket at PATH, or a port number on the loopback
+     *  interface (0 for any free port). */
+    static ServerSocketChannel listen(String address) {
+        try {
+            if (address.startsWith(UNIX_PREFIX)) {
+                Path path = Path.of(address.substring(UNIX_PREFIX.length()));
+                ServerSocketChannel server =
+                    ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+                server.bind(UnixDomainSocketAddress.of(path));
+                path.toFile().deleteOnExit();
+                return server;
+            }
+            int port = Integer.parseInt(address);
+            ServerSocketChannel server = ServerSocketChannel.open();
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                                              port));
+            return server;
+        } catch (NumberFormatException excp) {
+            throw error("bad server address %s", address);
+        } catch (IOException | IllegalArgumentException excp) {
+            throw error("cannot listen at %s", address);
+        }
+    }
+
+    /** Return a printable description of the address of SERVER. */
+    static String describe(ServerSocketChannel server) {
+        try {
+            SocketAddress address = server.getLocalAddress();
+            if (address instanceof UnixDomainSocketAddress) {
+                return UNIX_PREFIX
+                    + ((UnixDomainSocketAddress) address).getPath();
+            }
+            return Integer.toString(((InetSocketAddress) address).getPort());
+        } catch (IOException excp) {
+            throw error("server is closed");
+        }
+    }
+
+    /** Accept and serve connections to SERVER until it is closed. */
+    void serve(ServerSocketChannel server) {
+        try {
+            while (true) {
+                SocketChannel client = server.accept();
+                _workers.execute(() -> serve(client));
+            }
+        } catch (IOException excp) {
+            if (server.isOpen()) {
+                throw error("could not accept connection");
+            }
+        } finally {
+            _workers.shutdownNow();
+            try {
+                SocketAddress address = server.getLocalAddress();
+                if (address instanceof UnixDomainSocketAddress) {
+                    Files.deleteIfExists(
+                        ((UnixDomainSocketAddress) address).getPath());
+                }
+            } catch (IOException excp) {
+                /* Already gone. */
+            }
+        }
+    }
+
+    /** Answer the requests arriving on CLIENT until it closes. */
+    private void serve(SocketChannel client) {
+        MessageInput in = new MessageInput(client, Charset.defaultCharset());
+        MessageOutput out = new MessageOutput(client,
+                                              Charset.defaultCharset());
+        Machine machine = _template.copy();
+        char[] text = new char[INITIAL_TEXT];
+        int[] lineEnds = new int[INITIAL_LINES];
+        try {
+            while (in.nextLine()) {
+                String settings = new String(in.line(), 0, in.length());
+                int count = in.nextLine() ? count(in) : -1;
+                if (count < 0) {
+                    out.printLine("ERROR bad request");
+                    break;
+                }
+                if (lineEnds.length < count) {
+                    lineEnds = new int[Math.min(count, MAX_PREALLOCATED)];
+                }
+                int length = 0;
+                for (int k = 0; k < count; k += 1) {
+                    if (!in.nextLine()) {
+                        return;
+                    }
+                    if (length + in.length() > text.length) {
+                        text = Arrays.copyOf(text, Math.max(
+                            length + in.length(), 2 * text.length));
+                    }
+                    System.arraycopy(in.line(), 0, text, length,
+                                     in.length());
+                    length += in.length();
+                    if (k == lineEnds.length) {
+                        lineEnds = Arrays.copyOf(lineEnds, 2 * k);
+                    }
+                    lineEnds[k] = length;
+                }
+                reply(machine, settings, text, lineEnds, count, out);
+                if (!in.ready()) {
+                    out.flush();
+                }
+            }
+        } catch (EnigmaException excp) {
+            /* The connection failed; drop it. */
+        } finally {
+            try {
+                out.flush();
+            } catch (EnigmaException excp) {
+                /* The client has gone. */
+            }
+            in.close();
+        }
+    }
+
+    /** Return the request line count held in the current line of IN, or
+     *  -1 if it is not a number. */
+    private static int count(MessageInput in) {
+        try {
+            return Integer.parseInt(new String(in.line(), 0, in.length())
+                                    .trim());
+        } catch (NumberFormatException excp) {
+            return -1;
+        }
+    }
+
+    /** Write to OUT the reply to a request with settings line SETTINGS and
+     *  COUNT message lines, line K ending at LINEENDS[K] in TEXT, setting
+     *  up and converting them with M.  The message lines are converted in
+     *  place.  The time taken to set up and convert counts as a session
+     *  in M's metrics, if any. */
+    private void reply(Machine M, String settings, char[] text,
+                       int[] lineEnds, int count, MessageOutput out) {
+        Metrics metrics = M.metrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        try {
+            int first = 0;
+            while (first < settings.length()
+                   && Character.isWhitespace(settings.charAt(first))) {
+                first += 1;
+            }
+            if (!settings.startsWith("*", first)
+                || first + 1 < settings.length()
+                   && !Character.isWhitespace(settings.charAt(first + 1))) {
+                throw error("bad settings");
+            }
+            M.emptyRotors();
+            try {
+                _setUp.accept(M, settings.substring(first));
+            } catch (EnigmaException excp) {
+                throw excp;
+            } catch (RuntimeException excp) {
+                throw error("bad settings");
+            }
+            int from = 0;
+            for (int k = 0; k < count; k += 1) {
+                int len = lineEnds[k] - from;
+                if (!blank(text, from, len)) {
+                    try {
+                        M.convert(text, from, len, text, from);
+                    } catch (EnigmaException excp) {
+                        throw error("ind err");
+                    }
+                }
+                from = lineEnds[k];
+            }
+        } catch (EnigmaException excp) {
+            out.printLine("ERROR " + excp.getMessage());
+            return;
+        } finally {
+            if (metrics != null) {
+                metrics.session(System.nanoTime() - start);
+            }
+        }
+        out.printLine("OK " + count);
+        int from = 0;
+        for (int k = 0; k < count; k += 1) {
+            int len = lineEnds[k] - from;
+            if (blank(text, from, len)) {
+                out.println();
+            } else {
+                out.printGrouped(text, from, len, _group);
+            }
+            from = lineEnds[k];
+        }
+    }
+
+    /** Return true iff the LEN characters of TEXT starting at OFF are all
+     *  whitespace. */
+    private static boolean blank(char[] text, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            if (!Character.isWhitespace(text[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Prefix of addresses of Unix domain sockets. */
+    static final String UNIX_PREFIX = "unix:";
+
+    /** Initial capacity of a connection's message text. */
+    private static final int INITIAL_TEXT = 1024;
+
+    /** Initial capacity of a connection's line table. */
+    private static final int INITIAL_LINES = 16;
+
+    /** Largest line table made for a request before its lines arrive. */
+    private static final int MAX_PREALLOCATED = 1 << 16;
+
+    /** Machine copied for each connection. */
+    private final Machine _template;
+
+    /** Sets up a machine from a settings line. */
+    private final BiConsumer<Machine, String> _setUp;
+
+    /** Number of characters in each printed group. */
+    private final int _group;
+
+    /** Threads serving connections. */
+    private final ExecutorService _workers;
+}
@@ -2,7 +2,21 @@ package enigma;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.List;
 import static org.junit.Assert.*;
 
 
@@ -33,7 +47,8 @@ public class IntegrationTest {
         x2.insertRotors(new String[]{"B", "Beta", "III", "IV", "I"});
         x2.setRotors(setting2);
         String msg3 = "FROM HIS SHOULDER HIAWATHA TOOK THE CAMERA OF ROSEWOOD";
-        System.out.println(x2.convert(msg3));
+        assertEquals("HYIH LBK OGAVKEHJ GJIMBMBR EZUL SAR AVRVAM UH BKBDECWR",
+                     x2.convert(msg3));
     }
 
     @Test
@@ -43,7 +58,7 @@ public class IntegrationTest {
         x3.insertRotors(new String[]{"B", "Beta", "III", "IV", "I"});
         x3.setPlugboard(new Permutation("(YF) (ZH)", upper));
         x3.setRotors(setting2);
-        System.out.println(upper.toChar(x3.convert(upper.toInt('Y'))));
+        assertEquals('Z', upper.toChar(x3.convert(upper.toInt('Y'))));
     }
 
     @Test
@@ -56,10 +71,283 @@ public class IntegrationTest {
     }
 
     @Test
-    public void carroll01Test() {
-        Main.main("testing/correct/default.conf",
-                "testing/correct/01-carroll.in");
+    public void carroll01Test() throws IOException {
+        File out = File.createTempFile("enigma", ".out");
+        out.deleteOnExit();
+        Main.main(CORRECT + "default.conf",
+                CORRECT + "01-carroll.in", out.getPath());
+        List<String> lines = Files.readAllLines(out.toPath());
+        assertEquals(26, lines.size());
+        assertEquals("HYIHL BKOML IUYDC MPPSF SZW", lines.get(0));
     }
+    @Test
+    public void mappedTest() throws IOException {
+        File out = File.createTempFile("enigma", ".out");
+        out.deleteOnExit();
+        Main.main("--mmap", CORRECT + "default.conf",
+                CORRECT + "trivial.in", out.getPath());
+        assertEquals(new String(Files.readAllBytes(
+                new File(CORRECT + "trivial.out").toPath())).trim(),
+                new String(Files.readAllBytes(out.toPath())).trim());
+    }
+    @Test
+    public void configCacheTest() throws IOException {
+        File conf = File.createTempFile("enigma", ".conf");
+        File cache = new File(conf.getPath() + ".cache");
+        File out = File.createTempFile("enigma", ".out");
+        conf.deleteOnExit();
+        cache.deleteOnExit();
+        out.deleteOnExit();
+        String expected = new String(Files.readAllBytes(
+                new File(CORRECT + "trivial.out").toPath())).trim();
+        Files.copy(new File(CORRECT + "default.conf").toPath(),
+                conf.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        for (int run = 0; run < 2; run += 1) {
+            Main.main("--config-cache", conf.getPath(),
+                    CORRECT + "trivial.in", out.getPath());
+            assertTrue(cache.exists());
+            assertEquals(expected,
+                    new String(Files.readAllBytes(out.toPath())).trim());
+        }
+        byte[] compiled = Files.readAllBytes(cache.toPath());
+        Files.write(conf.toPath(), "\n".getBytes(),
+                StandardOpenOption.APPEND);
+        Main.main("--config-cache", conf.getPath(),
+                CORRECT + "trivial.in", out.getPath());
+        assertEquals(expected,
+                new String(Files.readAllBytes(out.toPath())).trim());
+        assertFalse(Arrays.equals(compiled,
+                Files.readAllBytes(cache.toPath())));
+    }
+
+    @Test
+    public void serverTest() throws Exception {
+        Path socket = Files.createTempDirectory("enigma").resolve("sock");
+        socket.toFile().deleteOnExit();
+        Thread server = new Thread(() -> Main.main(
+                "--serve=unix:" + socket, CORRECT + "default.conf"));
+        server.setDaemon(true);
+        PrintStream stdout = System.out;
+        ByteArrayOutputStream banner = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(banner, true));
+        try {
+            server.start();
+            for (int tries = 0;
+                 !banner.toString().startsWith("listening at unix:");
+                 tries++) {
+                assertTrue("server did not start", tries < 100);
+                Thread.sleep(20);
+            }
+        } finally {
+            System.setOut(stdout);
+        }
+        SocketChannel client =
+            SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        try {
+            String requests = "* B Beta III IV I AXLE (YF) (ZH)\n1\n"
+                    + "HELLO WORLD\n* B Beta III IV I AXLE (YF) (ZH)\n2\n"
+                    + "SZVGJ HUKSG\n\n* \n1\nHELLO\n"
+                    + "* B Beta III IV I AXLE\n1\nhi\n";
+            client.write(ByteBuffer.wrap(requests.getBytes()));
+            client.shutdownOutput();
+            ByteArrayOutputStream reply = new ByteArrayOutputStream();
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            while (client.read(buf) >= 0) {
+                reply.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            String nl = System.lineSeparator();
+            assertEquals("OK 1" + nl + "SZVGJ HUKSG" + nl
+                    + "OK 2" + nl + "HELLO WORLD" + nl + nl
+                    + "ERROR bad settings" + nl
+                    + "ERROR ind err" + nl, reply.toString());
+        } finally {
+            client.close();
+        }
+    }
+
+    @Test
+    public void groupTest() throws IOException {
+        File fives = File.createTempFile("enigma", ".out");
+        File threes = File.createTempFile("enigma", ".out");
+        fives.deleteOnExit();
+        threes.deleteOnExit();
+        Main.main(CORRECT + "default.conf",
+                CORRECT + "01-carroll.in", fives.getPath());
+        Main.main("--group=3", CORRECT + "default.conf",
+                CORRECT + "01-carroll.in", threes.getPath());
+        List<String> expected = Files.readAllLines(fives.toPath());
+        List<String> actual = Files.readAllLines(threes.toPath());
+        assertEquals(expected.size(), actual.size());
+        for (int k = 0; k < expected.size(); k += 1) {
+            String letters = expected.get(k).replace(" ", "");
+            assertEquals(letters.replaceAll("(...)(?=.)", "$1 "),
+                    actual.get(k));
+        }
+    }
+
+    @Test
+    public void cribTest() throws IOException {
+        List<String> found = searchOutput(
+                "--crib=WETTERVORHERSAGE", "WETTERVORHERSAGE FUER DIE REGION");
+        assertTrue(found.contains(SEARCH_SETTINGS));
+    }
+
+    @Test
+    public void attackTest() throws IOException {
+        List<String> found = searchOutput(
+                "--attack",
+                "IT WAS THE BEST OF TIMES IT WAS THE WORST OF TIMES IT WAS"
+                + " THE AGE OF WISDOM IT WAS THE AGE OF FOOLISHNESS IT WAS"
+                + " THE EPOCH OF BELIEF IT WAS THE EPOCH OF INCREDULITY IT"
+                + " WAS THE SEASON OF LIGHT IT WAS THE SEASON OF DARKNESS"
+                + " IT WAS THE SPRING OF HOPE IT WAS THE WINTER OF DESPAIR"
+                + " WE HAD EVERYTHING BEFORE US WE HAD NOTHING BEFORE US");
+        assertEquals(SEARCH_SETTINGS, found.get(0));
+    }
+
+    /** Encrypt MESSAGE with the machine of three-rotors.conf set to
+     *  SEARCH_SETTINGS, search the result for its settings with OPTION,
+     *  and return the lines printed by the search. */
+    private List<String> searchOutput(String option, String message)
+        throws IOException {
+        File in = File.createTempFile("enigma", ".in");
+        File cipher = File.createTempFile("enigma", ".out");
+        File found = File.createTempFile("enigma", ".out");
+        in.deleteOnExit();
+        cipher.deleteOnExit();
+        found.deleteOnExit();
+        String conf = CORRECT + "three-rotors.conf";
+        Files.write(in.toPath(), Arrays.asList(SEARCH_SETTINGS, message));
+        Main.main(conf, in.getPath(), cipher.getPath());
+        Main.main(option, conf, cipher.getPath(), found.getPath());
+        return Files.readAllLines(found.toPath());
+    }
+
+    @Test
+    public void ngramTableTest() throws IOException {
+        File corpus = File.createTempFile("enigma", ".txt");
+        File compiled = new File(corpus.getPath() + ".bin");
+        corpus.deleteOnExit();
+        compiled.deleteOnExit();
+        Files.write(corpus.toPath(), Arrays.asList(
+                "The quick brown fox", "jumps over the lazy dog."));
+        NgramTable built = NgramTable.open(corpus.toPath(), upper, 2);
+        assertTrue(compiled.exists());
+        ByteBuffer header =
+            ByteBuffer.wrap(Files.readAllBytes(compiled.toPath()));
+        assertEquals(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN
+                     ? 1 : 2, header.getInt(2 * Integer.BYTES));
+        NgramTable mapped = NgramTable.open(compiled.toPath(), upper, 0);
+        assertEquals(2, mapped.length());
+        assertEquals(Math.log10(2.0 / 34), mapped.logProbability("TH"),
+                     1e-6);
+        assertEquals(built.logProbability("QZ"),
+                     mapped.logProbability("QZ"), 0);
+        int[] text = { upper.toInt('T'), upper.toInt('H'), upper.toInt('E') };
+        assertEquals(mapped.logProbability("TH")
+                     + mapped.logProbability("HE"),
+                     mapped.score(text, text.length), 1e-6);
+    }
+
+    @Test
+    public void batchTest() throws IOException {
+        File serial = File.createTempFile("enigma", ".out");
+        File batch = File.createTempFile("enigma", ".out");
+        serial.deleteOnExit();
+        batch.deleteOnExit();
+        Main.main(CORRECT + "default.conf",
+                CORRECT + "01-carroll.in", serial.getPath());
+        Main.main("--batch=3", CORRECT + "default.conf",
+                CORRECT + "01-carroll.in", batch.getPath());
+        assertEquals(new String(Files.readAllBytes(serial.toPath())),
+                new String(Files.readAllBytes(batch.toPath())));
+        Main.main("--batch=3", "--lockstep", CORRECT + "default.conf",
+                CORRECT + "01-carroll.in", batch.getPath());
+        assertEquals(new String(Files.readAllBytes(serial.toPath())),
+                new String(Files.readAllBytes(batch.toPath())));
+    }
+
+    @Test
+    public void batchFailureTest() throws IOException {
+        File in = File.createTempFile("enigma", ".in");
+        in.deleteOnExit();
+        Files.write(in.toPath(), Arrays.asList(
+                "* B Beta III IV I AXLE (YF) (ZH)", "HELLO WORLD", "FOO",
+                "* ", "ABC"));
+        String serial = failedOutput(CORRECT + "default.conf",
+                                     in.getPath());
+        assertEquals(String.format("SZVGJ HUKSG%nOWN%n"), serial);
+        assertEquals(serial,
+                     failedOutput("--batch=2", CORRECT + "default.conf",
+                                  in.getPath()));
+    }
+
+    @Test
+    public void parallelFailureTest() throws IOException {
+        File in = File.createTempFile("enigma", ".in");
+        in.deleteOnExit();
+        Files.write(in.toPath(), Arrays.asList(
+                "* B Beta III IV I AXLE (YF) (ZH)", "HELLO WORLD", "", "",
+                "FOO1"));
+        String serial = failedOutput(CORRECT + "default.conf",
+                                     in.getPath());
+        assertEquals(String.format("SZVGJ HUKSG%n%n%n"), serial);
+        assertEquals(serial,
+                     failedOutput("--parallel=2",
+                                  CORRECT + "default.conf",
+                                  in.getPath()));
+    }
+
+    @Test
+    public void mappedFailureTest() throws IOException {
+        File in = File.createTempFile("enigma", ".in");
+        in.deleteOnExit();
+        Files.write(in.toPath(), Arrays.asList(
+                "* B Beta III IV I AXLE (YF) (ZH)", "HELLO WORLD", "",
+                "HELLO WORLD FOO1"));
+        String serial = failedOutput(CORRECT + "default.conf",
+                                     in.getPath());
+        assertEquals(String.format("SZVGJ HUKSG%n%n"), serial);
+        assertEquals(serial,
+                     failedOutput("--mmap", CORRECT + "default.conf",
+                                  in.getPath()));
+        Files.write(in.toPath(), Arrays.asList(
+                "* B Beta III IV I AXLE (YF) (ZH)", "HELLO WORLD", "",
+                "* ", "HELLO"));
+        assertEquals(failedOutput(CORRECT + "default.conf", in.getPath()),
+                     failedOutput("--mmap", CORRECT + "default.conf",
+                                  in.getPath()));
+    }
+
+    /** Process messages as Main.main would with ARGS, the last of which
+     *  names an input file, checking that this fails, and return the
+     *  output written before the failure. */
+    private String failedOutput(String... args) throws IOException {
+        File out = File.createTempFile("enigma", ".out");
+        out.deleteOnExit();
+        String[] withOutput = Arrays.copyOf(args, args.length + 1);
+        withOutput[args.length] = out.getPath();
+        try {
+            new Main(withOutput).process();
+            fail("bad message accepted");
+        } catch (EnigmaException excp) {
+            /* Expected. */
+        }
+        return new String(Files.readAllBytes(out.toPath()));
+    }
+
+    /** Directory of the correct test cases, found whether the tests are
+     *  run from the project directory or, as by "make unit", from the
+     *  enigma directory. */
+    private static final String CORRECT =
+        new File("testing").isDirectory()
+        ? "testing/correct/" : "../testing/correct/";
+
+    /** Settings of the messages encrypted for searchOutput. */
+    private static final String SEARCH_SETTINGS =
+        "* B III I QE (AK) (CU) (EL) (HS) (TZ)";
+
     Alphabet upper = new Alphabet("ABCDEFGHIJKLMNOPQRSTUVWXYZ");
     Alphabet onlyABC = new Alphabet("ABC");
     int numRotors1 = 5;
@@ -83,14 +371,14 @@ public class IntegrationTest {
             "(AEPLIYWCOXMRFZBSTGJQNH) (DV) (KU)", upper),
             "MJ");
     Rotor c1 = new MovingRotor("C1", new Permutation(
-            "(BCDEFGHIJKLMNOPQRSTUVWXYZA)", onlyABC),
+            "(BCA)", onlyABC),
             "C");
     Rotor c2 = new MovingRotor("C2", new Permutation(
-            "(BCDEFGHIJKLMNOPQRSTUVWXYZA)", onlyABC), "C");
+            "(BCA)", onlyABC), "C");
     Rotor c3 = new MovingRotor("C3", new Permutation(
-            "(BCDEFGHIJKLMNOPQRSTUVWXYZA)", onlyABC), "C");
+            "(BCA)", onlyABC), "C");
     Rotor c4 = new MovingRotor("C4", new Permutation(
-            "(BCDEFGHIJKLMNOPQRSTUVWXYZA)", onlyABC), "C");
+            "(BCA)", onlyABC), "C");
     Rotor reflectorC = new Reflector("reflectorC",
             new Permutation("(ACB)", onlyABC));
     String setting1 = "AAAA";
@@ -0,0 +1,429 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static enigma.EnigmaException.error;
+
+/** A ciphertext-only search for the settings of a message, in the manner
+ *  of Gillogly's attack: the plaintext of a natural language has an
+ *  uneven distribution of letters, which a decryption at the wrong
+ *  settings, being close to random, lacks.
+ *
+ *  The search goes in two stages.  First every order of a configuration's
+ *  rotors (as for CribSearch) and every starting setting of its moving
+ *  rotors is tried with an empty plugboard, and the decryption scored by
+ *  its index of coincidence: the chance that two of its letters picked at
+ *  random are the same.  Though the plugboard garbles most letters, the
+ *  right rotor settings still tend to score well, and the best CLIMBS of
+ *  them are kept.  Then for each of those, the plugboard is found by hill
+ *  climbing: starting from no pairs, each pair of letters is swapped (or
+ *  unswapped) in turn, and the change kept when it improves the score,
+ *  until no change does.  The climb scores by index of coincidence and
+ *  then, if an NgramTable is given, by the N-gram log-likelihood of the
+ *  decryption, which tells good plaintext from bad far more sharply.
+ *
+ *  Both stages run on a ForkJoinPool: the first is divided by rotor order,
+ *  the second by candidate.  The scoring loops allocate nothing: each
+ *  thread decrypts into its own buffers, taking letters through the
+ *  scrambler with a Scrambler and through the plugboard with an array.
+ *  @author Arhan Vohra
+ */
+class KeySearch {
+
+    /** Number of rotor settings kept from the first stage for hill
+     *  climbing. */
+    static final int CLIMBS = 200;
+
+    /** A search of the rotors of SPEC for the settings of CIPHERTEXT,
+     *  scoring by the N-grams in NGRAMS, or by index of coincidence alone
+     *  if NGRAMS is null. */
+    KeySearch(MachineSpec spec, String ciphertext, NgramTable ngrams) {
+        _spec = spec;
+        _alphabet = spec.alphabet();
+        _size = _alphabet.size();
+        _last = spec.numRotors() - 1;
+        _ngrams = ngrams;
+        if (ngrams != null && ngrams.alphabet().size() != _size) {
+            throw error("n-gram table is for another alphabet");
+        }
+        if (ciphertext.length() < 2) {
+            throw error("ciphertext too short to search");
+        }
+        _cipher = new int[ciphertext.length()];
+        for (int k = 0; k < _cipher.length; k++) {
+            char ch = ciphertext.charAt(k);
+            if (!_alphabet.contains(ch)) {
+                throw error("character '%c' not in alphabet", ch);
+            }
+            _cipher[k] = _alphabet.toInt(ch);
+        }
+        _rotates = Scrambler.movingSlots(spec);
+        long starts = 1;
+        for (int i = 1; i <= _last; i++) {
+            if (_rotates[i]) {
+                if (starts > Long.MAX_VALUE / _size) {
+                    throw error("too many settings to search");
+                }
+                starts *= _size;
+            }
+        }
+        _starts = starts;
+        _orders = Scrambler.orders(spec);
+    }
+
+    /** Search all settings on POOL, and return the best RESULTS
+     *  candidates found, best first, each as a settings line, as in a
+     *  message file, followed by the decryption under it. */
+    List<String[]> run(ForkJoinPool pool, int results) {
+        _searched.reset();
+        long start = System.nanoTime();
+        Candidate[] best = pool.invoke(new Survey(0, _orders.size()))
+            .toArray(new Candidate[0]);
+        pool.invoke(new Climb(best, 0, best.length));
+        Arrays.sort(best);
+        _nanos = System.nanoTime() - start;
+        ArrayList<String[]> found = new ArrayList<>();
+        for (int k = 0; k < Math.min(results, best.length); k++) {
+            found.add(best[k].decryption());
+        }
+        _best = best.length > 0 ? best[0] : null;
+        return found;
+    }
+
+    /** Return a description of the extent and speed of the last run. */
+    String summary() {
+        double seconds = (double) _nanos / TimeUnit.SECONDS.toNanos(1);
+        long searched = _searched.sum();
+        String result = String.format("searched %d rotor orders, %d settings"
+                                      + " in %.3f s (%.0f settings/s)",
+                                      _orders.size(), searched, seconds,
+                                      seconds > 0 ? searched / seconds
+                                      : 0.0);
+        if (_best != null) {
+            result += String.format("; best index of coincidence %.4f",
+                                    _best._ic);
+            if (_ngrams != null) {
+                result += String.format(", %d-gram score %.1f",
+                                        _ngrams.length(), _best._score);
+            }
+        }
+        return result;
+    }
+
+    /** A rotor order and starting setting, with the plugboard found for
+     *  it and its score.  Better candidates sort first. */
+    private class Candidate implements Comparable<Candidate> {
+
+        /** The setting START of the rotor order numbered ORDER, scoring
+         *  SCORE with an empty plugboard. */
+        Candidate(int order, int[] start, double score) {
+            _order = order;
+            _start = start;
+            _score = score;
+            _partner = new int[_size];
+            for (int u = 0; u < _size; u++) {
+                _partner[u] = u;
+            }
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            return Double.compare(other._score, _score);
+        }
+
+        /** Return my settings line and the decryption of the ciphertext
+         *  under it, made with a Machine. */
+        String[] decryption() {
+            RotorSpec[] rotors = _orders.get(_order);
+            String cycles = Scrambler.cycles(_partner, _alphabet);
+            Machine M = _spec.newMachine();
+            String[] names = new String[rotors.length];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = rotors[i].name();
+            }
+            M.insertRotors(names);
+            M.restore(_start);
+            M.setPlugboard(new Permutation(cycles, _alphabet));
+            char[] text = new char[_cipher.length];
+            for (int k = 0; k < text.length; k++) {
+                text[k] = _alphabet.toChar(M.convert(_cipher[k]));
+            }
+            return new String[] {
+                Scrambler.settingsLine(rotors, _start, cycles, _alphabet),
+                new String(text)
+            };
+        }
+
+        /** Number of my rotor order. */
+        private final int _order;
+
+        /** Starting setting of my rotors, by slot. */
+        private final int[] _start;
+
+        /** Plugboard partner of each letter (itself if unplugged). */
+        private final int[] _partner;
+
+        /** My score: the N-gram log-likelihood of my decryption, or its
+         *  index of coincidence if there is no N-gram table. */
+        private double _score;
+
+        /** Index of coincidence of my decryption. */
+        private double _ic;
+    }
+
+    /** The first stage of the search, over the rotor orders numbered LO
+     *  to HI-1, yielding the CLIMBS best settings found.  Splits itself
+     *  in two until it has one order. */
+    private class Survey extends RecursiveTask<PriorityQueue<Candidate>> {
+
+        /** A survey of the orders numbered LO to HI-1. */
+        Survey(int lo, int hi) {
+            _lo = lo;
+            _hi = hi;
+        }
+
+        @Override
+        protected PriorityQueue<Candidate> compute() {
+            if (_hi - _lo > 1) {
+                int mid = (_lo + _hi) >>> 1;
+                Survey left = new Survey(_lo, mid);
+                left.fork();
+                PriorityQueue<Candidate> right = new Survey(mid, _hi).compute();
+                PriorityQueue<Candidate> best = left.join();
+                for (Candidate c : right) {
+                    keep(best, c);
+                }
+                return best;
+            }
+            return survey(_lo);
+        }
+
+        /** Return the best CLIMBS settings of the rotor order numbered
+         *  ORDER, worst first. */
+        private PriorityQueue<Candidate> survey(int order) {
+            PriorityQueue<Candidate> best =
+                new PriorityQueue<>(CLIMBS + 1, (a, b) -> b.compareTo(a));
+            Scrambler scrambler = new Scrambler(_spec, _cipher.length);
+            scrambler.useOrder(_orders.get(order));
+            int[] counts = new int[_size];
+            int[] start = new int[_last + 1];
+            long fastStarts = _rotates[_last] ? _size : 1;
+            for (long s = 0; s < _starts; s++) {
+                if (s % fastStarts == 0) {
+                    scrambler.newStart();
+                }
+                long rest = s;
+                for (int i = _last; i > 0; i--) {
+                    if (_rotates[i]) {
+                        start[i] = (int) (rest % _size);
+                        rest /= _size;
+                    }
+                }
+                scrambler.setUp(start, 0);
+                Arrays.fill(counts, 0);
+                for (int k = 0; k < _cipher.length; k++) {
+                    counts[scrambler.convert(k, _cipher[k])] += 1;
+                }
+                double score = coincidences(counts);
+                if (best.size() < CLIMBS || score > best.peek()._score) {
+                    keep(best, new Candidate(order, start.clone(), score));
+                }
+            }
+            _searched.add(_starts);
+            return best;
+        }
+
+        /** Bounds of my rotor orders. */
+        private final int _lo, _hi;
+    }
+
+    /** Add C to BEST, a queue of at most CLIMBS candidates, worst first,
+     *  dropping the worst if there are then too many. */
+    private static void keep(PriorityQueue<Candidate> best, Candidate c) {
+        best.add(c);
+        if (best.size() > CLIMBS) {
+            best.poll();
+        }
+    }
+
+    /** The second stage of the search, finding plugboards for CANDIDATES
+     *  LO to HI-1.  Splits itself in two until it has one candidate. */
+    private class Climb extends RecursiveAction {
+
+        /** The climbs for CANDIDATES LO to HI-1. */
+        Climb(Candidate[] candidates, int lo, int hi) {
+            _candidates = candidates;
+            _lo = lo;
+            _hi = hi;
+        }
+
+        @Override
+        protected void compute() {
+            if (_hi - _lo > 1) {
+                int mid = (_lo + _hi) >>> 1;
+                invokeAll(new Climb(_candidates, _lo, mid),
+                          new Climb(_candidates, mid, _hi));
+            } else if (_hi > _lo) {
+                new Climber().climb(_candidates[_lo]);
+            }
+        }
+
+        /** All candidates climbed. */
+        private final Candidate[] _candidates;
+
+        /** Bounds of my candidates. */
+        private final int _lo, _hi;
+    }
+
+    /** The state of one thread's hill climbing. */
+    private class Climber {
+
+        /** Find a plugboard for C by hill climbing, first on index of
+         *  coincidence and then on N-gram score, if there is a table. */
+        void climb(Candidate c) {
+            _scrambler.useOrder(_orders.get(c._order));
+            _scrambler.setUp(c._start, 0);
+            c._score = climb(c._partner, false);
+            if (_ngrams != null) {
+                c._score = climb(c._partner, true);
+            }
+            decrypt(c._partner);
+            c._ic = coincidences(count());
+        }
+
+        /** Improve the plugboard PARTNER one swap at a time, scoring by
+         *  N-grams iff NGRAMS, until no swap improves it, and return the
+         *  final score. */
+        private double climb(int[] partner, boolean ngrams) {
+            double score = score(partner, ngrams);
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                for (int u = 0; u < _size; u++) {
+                    for (int v = u + 1; v < _size; v++) {
+                        System.arraycopy(partner, 0, _saved, 0, _size);
+                        swap(partner, u, v);
+                        double trial = score(partner, ngrams);
+                        if (trial > score) {
+                            score = trial;
+                            improved = true;
+                        } else {
+                            System.arraycopy(_saved, 0, partner, 0, _size);
+                        }
+                    }
+                }
+            }
+            return score;
+        }
+
+        /** Change PARTNER to swap U and V, or to swap neither if it
+         *  already swaps them.  Letters previously swapped with U or V are
+         *  left unplugged. */
+        private void swap(int[] partner, int u, int v) {
+            if (partner[u] == v) {
+                partner[u] = u;
+                partner[v] = v;
+                return;
+            }
+            partner[partner[u]] = partner[u];
+            partner[partner[v]] = partner[v];
+            partner[u] = v;
+            partner[v] = u;
+        }
+
+        /** Return the score of the decryption with plugboard PARTNER:
+         *  its N-gram log-likelihood iff NGRAMS, else its index of
+         *  coincidence. */
+        private double score(int[] partner, boolean ngrams) {
+            decrypt(partner);
+            if (ngrams) {
+                return _ngrams.score(_text, _text.length);
+            }
+            return coincidences(count());
+        }
+
+        /** Decrypt the ciphertext into _text with plugboard PARTNER. */
+        private void decrypt(int[] partner) {
+            for (int k = 0; k < _text.length; k++) {
+                _text[k] =
+                    partner[_scrambler.convert(k, partner[_cipher[k]])];
+            }
+        }
+
+        /** Return the number of occurrences of each letter in _text. */
+        private int[] count() {
+            Arrays.fill(_counts, 0);
+            for (int x : _text) {
+                _counts[x] += 1;
+            }
+            return _counts;
+        }
+
+        /** The scrambler of the candidate being climbed. */
+        private final Scrambler _scrambler =
+            new Scrambler(_spec, _cipher.length);
+
+        /** The current decryption. */
+        private final int[] _text = new int[_cipher.length];
+
+        /** Occurrences of each letter in _text. */
+        private final int[] _counts = new int[_size];
+
+        /** The plugboard before the swap being tried. */
+        private final int[] _saved = new int[_size];
+    }
+
+    /** Return the index of coincidence of a text with COUNTS[X]
+     *  occurrences of each letter X. */
+    private double coincidences(int[] counts) {
+        long pairs = 0;
+        for (int n : counts) {
+            pairs += (long) n * (n - 1);
+        }
+        return (double) pairs / ((long) _cipher.length * (_cipher.length - 1));
+    }
+
+    /** Description of the machines searched. */
+    private final MachineSpec _spec;
+
+    /** Their alphabet. */
+    private final Alphabet _alphabet;
+
+    /** Size of _alphabet. */
+    private final int _size;
+
+    /** Slot of the fast rotor. */
+    private final int _last;
+
+    /** The N-gram table scored against, or null. */
+    private final NgramTable _ngrams;
+
+    /** The ciphertext, as indices. */
+    private final int[] _cipher;
+
+    /** _rotates[I] is true iff slot I holds a moving rotor. */
+    private final boolean[] _rotates;
+
+    /** Number of starting settings of the moving rotors. */
+    private final long _starts;
+
+    /** Every order of rotors to be tried. */
+    private final List<RotorSpec[]> _orders;
+
+    /** Number of settings searched. */
+    private final LongAdder _searched = new LongAdder();
+
+    /** Duration of the last run, in nanoseconds. */
+    private long _nanos;
+
+    /** The best candidate of the last run, or null. */
+    private Candidate _best;
+}
@@ -0,0 +1,96 @@
+package enigma;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** A histogram of durations in nanoseconds that may be recorded from
+ *  several threads at once.  As in an HDR histogram, values are counted
+ *  in buckets whose width grows with the value: each power of two is cut
+ *  into SUB_BUCKETS buckets of equal width, so a value is known to within
+ *  1 part in SUB_BUCKETS whatever its size, and recording is a shift, a
+ *  leading-zero count and one atomic increment.
+ *  @author Arhan Vohra
+ */
+class LatencyHistogram {
+
+    /** Number of buckets into which each power of two is cut. */
+    static final int SUB_BUCKETS = 1 << 4;
+
+    /** Record the duration NANOS; negative durations count as 0. */
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        _counts.incrementAndGet(bucket(value));
+        _max.accumulateAndGet(value, Math::max);
+    }
+
+    /** Return the number of durations recorded. */
+    long count() {
+        long total = 0;
+        for (int i = 0; i < _counts.length(); i++) {
+            total += _counts.get(i);
+        }
+        return total;
+    }
+
+    /** Return the largest duration recorded, or 0 if there is none. */
+    long max() {
+        return _max.get();
+    }
+
+    /** Return an upper bound, within 1 part in SUB_BUCKETS, on the
+     *  duration below which a fraction FRACTION of the recorded durations
+     *  lie, or 0 if there are none. */
+    long percentile(double fraction) {
+        long[] counts = new long[_counts.length()];
+        long total = 0;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = _counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highest(i), max());
+            }
+        }
+        return max();
+    }
+
+    /** Return the bucket holding the non-negative VALUE. */
+    private static int bucket(long value) {
+        int top = Long.SIZE - 1 - Long.numberOfLeadingZeros(value);
+        if (top < SUB_BITS) {
+            return (int) value;
+        }
+        int shift = top - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS
+            + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /** Return the largest value in bucket INDEX. */
+    private static long highest(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /** Log base 2 of SUB_BUCKETS. */
+    private static final int SUB_BITS = 4;
+
+    /** Number of buckets needed for every non-negative long. */
+    private static final int BUCKETS = bucket(Long.MAX_VALUE) + 1;
+
+    /** Number of durations recorded in each bucket. */
+    private final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+
+    /** Largest duration recorded. */
+    private final AtomicLong _max = new AtomicLong();
+}
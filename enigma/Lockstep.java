@@ -0,0 +1,25 @@
+package enigma;
+
+/** Converts the messages of several machines that share a rotor selection
+ *  but may differ in settings and plugboards, one message per machine,
+ *  as one unit of work.  Each message is converted in turn with its own
+ *  machine.
+ *  @author Arhan Vohra
+ */
+class Lockstep {
+
+    /** Replace the first LENGTHS[K] letters of LETTERS[K], which are
+     *  indices in the machines' alphabet, by their conversions with
+     *  MACHINES[K], for each K, advancing the machines accordingly.  All
+     *  MACHINES must have the same rotors in the same slots (see
+     *  Machine.sameRotors). */
+    void convert(Machine[] machines, int[][] letters, int[] lengths) {
+        for (int k = 0; k < machines.length; k += 1) {
+            Machine M = machines[k];
+            int[] msg = letters[k];
+            for (int t = 0; t < lengths[k]; t += 1) {
+                msg[t] = M.convert(msg[t]);
+            }
+        }
+    }
+}
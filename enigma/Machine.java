@@ -1,24 +1,128 @@
 package enigma;
 
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import jdk.jfr.FlightRecorder;
 
 import static enigma.EnigmaException.error;
 
 /** Class that represents a complete enigma machine.
+ *
+ *  A machine is the changing state of an Enigma over an unchanging
+ *  MachineSpec: which of the spec's rotors are in its slots, their
+ *  settings, and the plugboard.  The spec, and the rotor tables in it,
+ *  are shared, so machines made from one configuration can run on
+ *  different threads at once; a single machine is not thread-safe.
+ *
+ *  The machine runs "compiled": insertRotors flattens the chosen rotors
+ *  into per-slot wiring tables that already account for every rotor
+ *  setting, setRotors and advanceMachine keep the settings in primitive
+ *  arrays, and setPlugboard keeps the plugboard as a table.  Converting a
+ *  character is then a fixed chain of array lookups with no calls into
+ *  the rotors and no modular arithmetic.
+ *
+ *  With the CACHED engine, the machine also remembers the complete
+ *  substitution (plugboard, rotors, reflector and back) for recently seen
+ *  rotor settings, so that converting a character is one step of the
+ *  rotors and one table lookup.
+ *
+ *  Because the settings after any number of steps can be computed without
+ *  converting the characters in between (see stateAt), a long message can
+ *  also be cut into segments that are converted at the same time on
+ *  copies of the machine.
  *  @author Arhan Vohra
  */
 class Machine {
 
+    /** The ways a machine can convert characters. */
+    enum Engine {
+        /** Walk the compiled rotor tables for every character. */
+        COMPILED,
+        /** Look up whole-machine substitution tables by rotor settings,
+         *  computing and caching them on first use. */
+        CACHED
+    }
+
+    /** Default bound, in bytes, on the tables kept by the CACHED engine. */
+    static final long DEFAULT_CACHE_LIMIT = 8L << 20;
+
     /** A new Enigma machine with alphabet ALPHA, 1 < NUMROTORS rotor slots,
      *  and 0 <= PAWLS < NUMROTORS pawls.  ALLROTORS contains all the
      *  available rotors. */
     Machine(Alphabet alpha, int numRotors, int pawls,
             ArrayList<Rotor> allRotors) {
-        _alphabet = alpha;
-        numRotorsContainer = numRotors;
-        numPawlsContainer = pawls;
-        allRotorsContainer = allRotors;
-        plugboardContainer = new Permutation("", _alphabet);
+        this(new MachineSpec(alpha, numRotors, pawls, allRotors));
+    }
+
+    /** A new machine described by SPEC, with no rotors inserted. */
+    Machine(MachineSpec spec) {
+        _spec = spec;
+        _alphabet = spec.alphabet();
+        numRotorsContainer = spec.numRotors();
+        numPawlsContainer = spec.numPawls();
+        int numRotors = numRotorsContainer;
+        _size = _alphabet.size();
+        _slots = new RotorSpec[0];
+        _forward = new int[numRotors][];
+        _backward = new int[numRotors][];
+        _notches = new boolean[numRotors][];
+        _rotates = new boolean[numRotors];
+        _positions = new int[numRotors];
+        _base = new int[numRotors];
+        _willRotate = new boolean[numRotors];
+        _keyWeight = new long[numRotors];
+        _jumpRotate = new boolean[numRotors];
+        setPlugboard(new Permutation("", _alphabet));
+    }
+
+    /** A new machine with the same rotors, settings, plugboard and engine
+     *  as OTHER, sharing its (unchanging) tables but not its settings.
+     *  Unless CACHED, the new machine has no substitution cache, even
+     *  with the CACHED engine. */
+    private Machine(Machine other, boolean cached) {
+        _spec = other._spec;
+        _alphabet = other._alphabet;
+        numRotorsContainer = other.numRotorsContainer;
+        numPawlsContainer = other.numPawlsContainer;
+        _slots = other._slots;
+        _size = other._size;
+        _forward = other._forward.clone();
+        _backward = other._backward.clone();
+        _notches = other._notches.clone();
+        _rotates = other._rotates.clone();
+        _toNotch = other._toNotch;
+        _quietSteps = other._quietSteps;
+        _positions = other._positions.clone();
+        _base = other._base.clone();
+        _willRotate = new boolean[numRotorsContainer];
+        _keyWeight = other._keyWeight.clone();
+        _keyFits = other._keyFits;
+        _stateKey = other._stateKey;
+        _jumpRotate = new boolean[numRotorsContainer];
+        _engine = other._engine;
+        _cacheLimit = other._cacheLimit;
+        _metrics = other._metrics;
+        _plugboard = other._plugboard;
+        if (cached) {
+            resetCache();
+        }
+    }
+
+    /** Return a new machine in the same state as this one, which can be
+     *  used independently of (and concurrently with) it. */
+    Machine copy() {
+        return new Machine(this, true);
+    }
+
+    /** Return the description of this machine. */
+    MachineSpec spec() {
+        return _spec;
     }
 
     /** Return the number of rotor slots I have. */
@@ -35,18 +139,25 @@ class Machine {
      *  available rotors (ROTORS[0] names the reflector).
      *  Initially, all rotors are set at their 0 setting. */
     void insertRotors(String[] rotors) {
-        for (String x: rotors) {
-            for (int i = 0; i < allRotorsContainer.size(); i++) {
-                Rotor r = allRotorsContainer.get(i);
-                String namely = r.name();
-                if (namely.equals(x)) {
-                    machineRotors.add(r);
-                }
+        RotorEvent event = FlightRecorder.isInitialized()
+            ? new RotorEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        RotorSpec[] slots = new RotorSpec[rotors.length];
+        for (int j = 0; j < rotors.length; j++) {
+            RotorSpec found = _spec.rotor(rotors[j]);
+            if (found == null) {
+                throw error("unknown rotor %s", rotors[j]);
             }
+            slots[j] = found;
+        }
+        if (slots.length != numRotors()) {
+            throw error("wrong number of rotors");
         }
 
         int movableRotors = 0;
-        for (Rotor n: machineRotors) {
+        for (RotorSpec n: slots) {
             if (n.rotates()) {
                 movableRotors += 1;
             }
@@ -54,38 +165,226 @@ class Machine {
         if (movableRotors != numPawls()) {
             throw error("bad setting for this number of pawls.");
         }
+
+        _slots = slots;
+        for (int i = 0; i < numRotors(); i++) {
+            RotorSpec r = slots[i];
+            _forward[i] = r.forwardTable();
+            _backward[i] = r.backwardTable();
+            _rotates[i] = r.rotates();
+            _notches[i] = r.notches();
+            _positions[i] = 0;
+            _base[i] = 0;
+        }
+
+        int last = numRotors() - 1;
+        _toNotch = new int[_size];
+        int distance = -1;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int k = _size - 1; k >= 0; k--) {
+                if (_notches[last][k]) {
+                    distance = 0;
+                } else if (distance >= 0) {
+                    distance += 1;
+                }
+                _toNotch[k] = distance;
+            }
+        }
+
+        _stateKey = 0;
+        long weight = 1;
+        boolean fits = true;
+        for (int i = numRotors() - 1; i >= 0; i--) {
+            _keyWeight[i] = _rotates[i] ? weight : 0;
+            if (_rotates[i]) {
+                fits &= weight <= Long.MAX_VALUE / _size;
+                weight *= _size;
+            }
+        }
+        _keyFits = fits;
+        _quietSteps = 0;
+        resetCache();
+        if (event != null && event.shouldCommit()) {
+            event.operation = "insertRotors";
+            event.argument = String.join(" ", rotors);
+            event.commit();
+        }
     }
 
     /** Resets the active rotors. */
     void emptyRotors() {
-        machineRotors = new ArrayList<>();
-    }
-
-    /** Accessor method for allRotors.
-     * @return the private variable for allRotors. */
-    ArrayList<Rotor> getAllRotors() {
-        return allRotorsContainer;
+        _slots = new RotorSpec[0];
     }
 
     /** Set my rotors according to SETTING, which must be a string of
      *  numRotors()-1 characters in my alphabet. The first letter refers
      *  to the leftmost rotor setting (not counting the reflector).  */
     void setRotors(String setting) {
-        Rotor r;
-        try {
-            for (int i = 1; i < numRotors(); i++) {
-                r = machineRotors.get(i);
-                char charToSet = setting.charAt(i - 1);
-                r.set(charToSet);
-            }
-        } catch (IndexOutOfBoundsException excp) {
+        RotorEvent event = FlightRecorder.isInitialized()
+            ? new RotorEvent() : null;
+        if (event != null) {
+            event.begin();
+        }
+        if (setting.length() < numRotors() - 1) {
             throw error("out of bounds");
         }
+        for (int i = 1; i < numRotors(); i++) {
+            char charToSet = setting.charAt(i - 1);
+            if (!_alphabet.contains(charToSet)) {
+                throw error("bad rotor setting %s", setting);
+            }
+            _positions[i] = _alphabet.toInt(charToSet);
+            _base[i] = _rotates[i] ? _positions[i] * _size : 0;
+        }
+        _stateKey = 0;
+        for (int i = 0; i < numRotors(); i++) {
+            _stateKey += _keyWeight[i] * _positions[i];
+        }
+        _quietSteps = 0;
+        if (event != null && event.shouldCommit()) {
+            event.operation = "setRotors";
+            event.argument = setting;
+            event.commit();
+        }
+    }
+
+    /** Return the current setting of the rotor in slot SLOT, where slot 0
+     *  holds the reflector. */
+    int setting(int slot) {
+        return _positions[slot];
+    }
+
+    /** Return the settings of all my slots (slot 0 holding the reflector)
+     *  after N more steps, without changing my state.  Rather than taking
+     *  N steps, this skips directly over stretches in which only the fast
+     *  rotor moves, and stops simulating once a state recurs, so its cost
+     *  is bounded by the number of carries in one period of the
+     *  machine. */
+    int[] stateAt(long n) {
+        int[] pos = _positions.clone();
+        int last = pos.length - 1;
+        HashMap<Long, Long> seen = _keyFits ? new HashMap<>() : null;
+        while (n > 0) {
+            boolean quiet = true;
+            for (int i = last - 1; i > 1 && quiet; i--) {
+                quiet = !_notches[i][pos[i]]
+                    && (i + 1 == last || !_notches[i + 1][pos[i + 1]]);
+            }
+            if (quiet) {
+                if (!_rotates[last]) {
+                    break;
+                }
+                long run = n;
+                if (last >= 3 && _toNotch[pos[last]] >= 0) {
+                    run = Math.min(n, _toNotch[pos[last]]);
+                }
+                pos[last] = (int) ((pos[last] + run) % _size);
+                n -= run;
+                if (n == 0) {
+                    break;
+                }
+            }
+            if (seen != null && seen.size() < MAX_JUMP_STATES) {
+                long key = 0;
+                for (int i = 0; i <= last; i++) {
+                    key += _keyWeight[i] * pos[i];
+                }
+                Long before = seen.put(key, n);
+                if (before != null) {
+                    n %= before - n;
+                    seen = null;
+                    continue;
+                }
+            }
+            for (int i = last - 1; i > 1; i--) {
+                _jumpRotate[i] = _notches[i + 1][pos[i + 1]]
+                    || _notches[i][pos[i]];
+            }
+            _jumpRotate[last] = true;
+            for (int i = 1; i <= last; i++) {
+                if (_jumpRotate[i] && _rotates[i]) {
+                    pos[i] = pos[i] + 1 == _size ? 0 : pos[i] + 1;
+                }
+            }
+            n -= 1;
+        }
+        return pos;
+    }
+
+    /** Advance my rotors N steps, as if N characters had been
+     *  converted. */
+    void jumpAhead(long n) {
+        restore(stateAt(n));
+    }
+
+    /** Set the settings of all my slots to STATE, as returned by
+     *  stateAt. */
+    void restore(int[] state) {
+        _quietSteps = 0;
+        _stateKey = 0;
+        for (int i = 0; i < _positions.length; i++) {
+            _positions[i] = state[i];
+            _base[i] = _rotates[i] ? state[i] * _size : 0;
+            _stateKey += _keyWeight[i] * state[i];
+        }
     }
 
     /** Set the plugboard to PLUGBOARD. */
     void setPlugboard(Permutation plugboard) {
-        plugboardContainer = plugboard;
+        _plugboard = plugboard.forwardTable();
+        resetCache();
+    }
+
+    /** Select ENGINE for converting characters. */
+    void setEngine(Engine engine) {
+        _engine = engine;
+        resetCache();
+    }
+
+    /** Return the engine I use to convert characters. */
+    Engine engine() {
+        return _engine;
+    }
+
+    /** Limit the tables kept by the CACHED engine to about BYTES bytes;
+     *  at least one table is always kept. */
+    void setCacheLimit(long bytes) {
+        _cacheLimit = bytes;
+        resetCache();
+    }
+
+    /** Count the characters I convert in METRICS, or in nothing if
+     *  METRICS is null.  Only the bulk conversions count, once per call,
+     *  so that convert(int) carries no instrumentation at all. */
+    void setMetrics(Metrics metrics) {
+        _metrics = metrics;
+    }
+
+    /** Return the metrics counting my conversions, or null. */
+    Metrics metrics() {
+        return _metrics;
+    }
+
+    /** Return the cache used by the CACHED engine, or null if it is not
+     *  in use. */
+    SubstitutionCache cache() {
+        return _cache;
+    }
+
+    /** Discard any cached substitution tables, and set up a fresh cache
+     *  if the CACHED engine is selected.  Falls back to walking the rotor
+     *  tables if the rotor settings cannot be encoded as a key. */
+    private void resetCache() {
+        if (_engine != Engine.CACHED || !_keyFits || _forward[0] == null) {
+            _cache = null;
+        } else if (_cache != null) {
+            _cache.clear();
+        } else {
+            long perTable = 4L * _size + TABLE_OVERHEAD;
+            long tables = Math.max(1, Math.min(_cacheLimit / perTable,
+                                               MAX_CACHED_TABLES));
+            _cache = new SubstitutionCache((int) tables, _size);
+        }
     }
 
     /** Returns the result of converting the input character C (as an
@@ -93,127 +392,289 @@ class Machine {
      *  the machine. */
     int convert(int c) {
         advanceMachine();
-        int cPostPlug = postPlugboard(c);
-        int currentConverted = cPostPlug;
-        for (int i = numRotors() - 1; i != 0; i--) {
-            Rotor current = machineRotors.get(i);
-            currentConverted = current.convertForward(
-                    currentConverted);
+        if (_cache != null) {
+            int[] table = _cache.get(_stateKey);
+            if (table == null) {
+                table = _cache.claim(_stateKey);
+                for (int k = 0; k < _size; k++) {
+                    table[k] = substitute(k);
+                }
+            }
+            return table[c];
+        }
+        return substitute(c);
+    }
+
+    /** Return the conversion of C through the plugboard, the rotors, the
+     *  reflector and back at the current rotor settings, without
+     *  advancing. */
+    private int substitute(int c) {
+        int x = _plugboard[c];
+        for (int i = _forward.length - 1; i > 0; i--) {
+            x = _forward[i][_base[i] + x];
         }
-        for (int j = 0; j < numRotors(); j++) {
-            Rotor current = machineRotors.get(j);
-            currentConverted = current.convertBackward(
-                    currentConverted);
+        for (int j = 0; j < _backward.length; j++) {
+            x = _backward[j][_base[j] + x];
         }
-        int toReturn = postPlugboard(currentConverted);
-        return toReturn;
+        return _plugboard[x];
     }
 
-    /** Advances the entire sequence of rotors, once. */
+    /** Advances the entire sequence of rotors, once.  While
+     *  _quietSteps shows that no rotor but the fast one can move, only the
+     *  fast rotor is looked at; otherwise every slot is, and _quietSteps
+     *  is worked out afresh. */
     void advanceMachine() {
+        int last = _positions.length - 1;
+        if (_quietSteps > 0) {
+            _quietSteps -= 1;
+            if (_rotates[last]) {
+                int p = _positions[last] + 1;
+                if (p == _size) {
+                    p = 0;
+                }
+                _stateKey += p == 0
+                    ? -(long) (_size - 1) * _keyWeight[last]
+                    : _keyWeight[last];
+                _positions[last] = p;
+                _base[last] = p * _size;
+            }
+            return;
+        }
         /**
-         * Create an array of booleans to decide
-         * whether each rotor in machineRotors will move.
-         * Set this to false by default for all except the fast rotor.
-         * Advance the fast rotor.
-         * If the numRotors()-2 rotor is at
-         * fast rotor's notch, set rotate to true.
-         * If the numRotors()-3 rotor is at numRotors()-2's notch,
-         * set rotate to true.
-         * Also, set numRotors()-2's rotation to true.
+         * Every rotor between the leftmost slot after the reflector and
+         * the fast rotor moves if the rotor to its right is at a notch,
+         * or if it is at one of its own notches (the double step).  The
+         * fast rotor always moves.  All decisions are made on the
+         * settings before any rotor moves.
          */
+        for (int i = last - 1; i > 1; i--) {
+            _willRotate[i] = _notches[i + 1][_positions[i + 1]]
+                || _notches[i][_positions[i]];
+        }
+        _willRotate[last] = true;
 
-        Rotor fastRotor = machineRotors.get(numRotors() - 1);
-        boolean[] willRotate = new boolean[numRotors()];
-        willRotate[numRotors() - 1] = true;
-
-        for (int i = numRotors() - 2; i > 1; i--) {
-            Rotor inFront = machineRotors.get(i + 1);
-            Rotor thisRotor = machineRotors.get(i);
-            if (inFront.atNotch()) {
-                willRotate[i] = true;
-            } else if (thisRotor.atNotch()) {
-                willRotate[i] = true;
+        for (int i = 1; i <= last; i++) {
+            if (_willRotate[i] && _rotates[i]) {
+                int p = _positions[i] + 1;
+                if (p == _size) {
+                    p = 0;
+                }
+                _stateKey += p == 0
+                    ? -(long) (_size - 1) * _keyWeight[i] : _keyWeight[i];
+                _positions[i] = p;
+                _base[i] = p * _size;
             }
         }
+        _quietSteps = quietSteps();
+    }
 
-        for (int i = 0; i < numRotors(); i++) {
-            if (willRotate[i]) {
-                machineRotors.get(i).advance();
+    /** Return the number of steps from now in which only the fast rotor
+     *  will move: those before the fast rotor next reaches a notch,
+     *  provided no rotor between it and slot 1 is at a notch now (and so,
+     *  since none of them moves, in any of those steps). */
+    private long quietSteps() {
+        int last = _positions.length - 1;
+        for (int i = last - 1; i > 1; i--) {
+            if (_notches[i][_positions[i]]) {
+                return 0;
             }
         }
+        if (last < 3 || _toNotch[_positions[last]] < 0) {
+            return Long.MAX_VALUE;
+        }
+        return _toNotch[_positions[last]];
     }
 
     /** Passes @param c through the plugboard.
      * @return value after conversion. */
     int postPlugboard(int c) {
-        return plugboardContainer.permute(c);
+        return _plugboard[c];
     }
 
     /** Returns the encoding/decoding of MSG, updating the state of
      *  the rotors accordingly. */
     String convert(String msg) {
-        int convertedInt;
-        int charAsInt;
-        char intAsChar;
         char[] msgArray = msg.toCharArray();
-        for (int i = 0; i < msgArray.length; i++) {
-            if (msgArray[i] == ' ') {
-                continue;
-            }
-            charAsInt = _alphabet.toInt(msgArray[i]);
-            convertedInt = convert(charAsInt);
-            intAsChar = _alphabet.toChar(convertedInt);
-            msgArray[i] = intAsChar;
+        convert(msgArray, 0, msgArray.length, msgArray, 0);
+        return new String(msgArray);
+    }
 
+    /** Store the encoding/decoding of the LEN characters of SRC starting
+     *  at OFF into DST starting at DSTOFF, updating the state of the
+     *  rotors accordingly.  Blanks are copied unchanged.  SRC and DST may
+     *  be the same array, provided OFF == DSTOFF. */
+    void convert(char[] src, int off, int len, char[] dst, int dstOff) {
+        for (int i = 0; i < len; i++) {
+            char ch = src[off + i];
+            if (ch == ' ') {
+                dst[dstOff + i] = ' ';
+            } else {
+                dst[dstOff + i] =
+                    _alphabet.toChar(convert(_alphabet.toInt(ch)));
+            }
+        }
+        if (_metrics != null) {
+            _metrics.converted(len);
         }
+    }
 
-        String stringEmUp = "";
-        for (char x: msgArray) {
-            stringEmUp += x;
+    /** Convert as for convert(char[], int, int, char[], int), but when
+     *  the message is long, cut it into segments, find the settings at the
+     *  start of each with stateAt, and convert the segments at the same
+     *  time on copies of this machine in POOL.  The copies have no
+     *  substitution cache, since each would be filled from cold for one
+     *  segment and then dropped.  Afterwards my settings are as if I had
+     *  converted the message myself. */
+    void convertParallel(char[] src, int off, int len, char[] dst,
+                         int dstOff, ForkJoinPool pool) {
+        int segments = Math.min(pool.getParallelism() * SEGMENTS_PER_THREAD,
+                                len / MIN_SEGMENT);
+        if (segments < 2) {
+            convert(src, off, len, dst, dstOff);
+            return;
+        }
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        int[] state = _positions.clone();
+        for (int k = 0; k < segments; k++) {
+            int start = (int) ((long) len * k / segments);
+            int end = (int) ((long) len * (k + 1) / segments);
+            Machine segment = new Machine(this, false);
+            segment.restore(state);
+            tasks.add(() -> {
+                segment.convert(src, off + start, end - start,
+                                dst, dstOff + start);
+                return null;
+            });
+            int letters = 0;
+            for (int i = off + start; i < off + end; i++) {
+                letters += src[i] == ' ' ? 0 : 1;
+            }
+            restore(state);
+            state = stateAt(letters);
+        }
+        restore(state);
+        try {
+            for (Future<Void> done : pool.invokeAll(tasks)) {
+                done.get();
+            }
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof EnigmaException) {
+                throw (EnigmaException) excp.getCause();
+            }
+            throw new IllegalStateException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("interrupted");
         }
-        return stringEmUp;
     }
 
-    /** CURRENTLY UNUSED METHODS. */
+    /** Store the encoding/decoding of the remaining characters of SRC
+     *  into DST, as for convert(char[], int, int, char[], int), advancing
+     *  the positions of both buffers.  DST must have room for all of
+     *  SRC. */
+    void convert(CharBuffer src, CharBuffer dst) {
+        int len = src.remaining();
+        if (dst.remaining() < len) {
+            throw error("output buffer too small");
+        }
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            convert(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.position() + len);
+            dst.position(dst.position() + len);
+        } else {
+            for (int i = 0; i < len; i++) {
+                char ch = src.get();
+                if (ch == ' ') {
+                    dst.put(' ');
+                } else {
+                    dst.put(_alphabet.toChar(convert(_alphabet.toInt(ch))));
+                }
+            }
+            if (_metrics != null) {
+                _metrics.converted(len);
+            }
+        }
+    }
 
-    /** Advances the fast rotor.
-     * @param x is the current rotor. */
-    void advanceFastRotor(Rotor x) {
-        x.advance();
-        if (x.atNotch()) {
-            advanceSequence(numRotors() - 2);
+    /** Store the encoding/decoding of the LEN ASCII characters of SRC
+     *  starting at OFF, one per byte, into DST starting at DSTOFF, as for
+     *  convert(char[], int, int, char[], int).  My alphabet must be
+     *  ASCII.  SRC and DST may be the same array, provided OFF ==
+     *  DSTOFF. */
+    void convert(byte[] src, int off, int len, byte[] dst, int dstOff) {
+        if (!_alphabet.isAscii()) {
+            throw error("alphabet is not ASCII");
+        }
+        for (int i = 0; i < len; i++) {
+            byte b = src[off + i];
+            if (b == ' ') {
+                dst[dstOff + i] = ' ';
+            } else {
+                dst[dstOff + i] =
+                    _alphabet.toByte(convert(_alphabet.toInt(b)));
+            }
+        }
+        if (_metrics != null) {
+            _metrics.converted(len);
         }
     }
 
-    /** Advances the sequence.
-     * @param i is the current int. */
-    void advanceSequence(int i) {
-        Rotor thisRotor = machineRotors.get(i);
-        Rotor nextRotor = null;
-        if ((i + 1) < numRotors()) {
-            nextRotor = machineRotors.get(i + 1);
+    /** Store the encoding/decoding of the remaining bytes of SRC into
+     *  DST, as for convert(byte[], int, int, byte[], int), advancing the
+     *  positions of both buffers.  DST must have room for all of SRC. */
+    void convert(ByteBuffer src, ByteBuffer dst) {
+        int len = src.remaining();
+        if (dst.remaining() < len) {
+            throw error("output buffer too small");
         }
-        thisRotor.advance();
-        if (thisRotor.atNotch()) {
-            advanceSequence(i - 1);
+        if (src.hasArray() && dst.hasArray() && !dst.isReadOnly()) {
+            convert(src.array(), src.arrayOffset() + src.position(), len,
+                    dst.array(), dst.arrayOffset() + dst.position());
+            src.position(src.position() + len);
+            dst.position(dst.position() + len);
+        } else {
+            if (!_alphabet.isAscii()) {
+                throw error("alphabet is not ASCII");
+            }
+            for (int i = 0; i < len; i++) {
+                byte b = src.get();
+                if (b == ' ') {
+                    dst.put((byte) ' ');
+                } else {
+                    dst.put(_alphabet.toByte(convert(_alphabet.toInt(b))));
+                }
+            }
+            if (_metrics != null) {
+                _metrics.converted(len);
+            }
         }
     }
 
-    /** @return private machineRotors. */
-    ArrayList<Rotor> getMachineRotors() {
-        return machineRotors;
+    /** Return the rotor in slot SLOT, where slot 0 holds the reflector.
+     *  Rotors must have been inserted. */
+    RotorSpec rotor(int slot) {
+        return _slots[slot];
     }
 
-    /** Returns rotor names as an ArrayList of strings. */
-    ArrayList<String> getAllRotorsStr() {
-        ArrayList<String> stringer = new ArrayList<>();
-        for (Rotor x: getAllRotors()) {
-            stringer.add(x.name());
+    /** Return true iff OTHER has the same rotors as I do in each slot,
+     *  whatever their settings, so that we convert with the same wiring
+     *  tables. */
+    boolean sameRotors(Machine other) {
+        if (_slots.length != other._slots.length) {
+            return false;
         }
-        return stringer;
+        for (int i = 0; i < _slots.length; i++) {
+            if (_slots[i] != other._slots[i]) {
+                return false;
+            }
+        }
+        return true;
     }
 
+    /** Description of this machine, shared with other machines. */
+    private final MachineSpec _spec;
+
     /** Common alphabet of my rotors. */
     private final Alphabet _alphabet;
 
@@ -223,13 +684,92 @@ class Machine {
     /** Number of rotors in this machine. */
     private final int numPawlsContainer;
 
-    /** Collection of all available rotors. */
-    private ArrayList<Rotor> allRotorsContainer = new ArrayList<>();
+    /** Rotors actually used in this machine, by slot; empty if none have
+     *  been inserted. */
+    private RotorSpec[] _slots;
+
+    /** Size of my alphabet. */
+    private final int _size;
+
+    /** The plugboard, as a table from index to index. */
+    private int[] _plugboard;
+
+    /** Forward wiring table of the rotor in each slot (see
+     *  Rotor.forwardTable()). */
+    private final int[][] _forward;
+
+    /** Backward wiring table of the rotor in each slot. */
+    private final int[][] _backward;
+
+    /** _notches[I][K] is true iff the rotor in slot I has a notch at
+     *  setting K. */
+    private final boolean[][] _notches;
+
+    /** _rotates[I] is true iff the rotor in slot I can move. */
+    private final boolean[] _rotates;
+
+    /** Current setting of the rotor in each slot. */
+    private final int[] _positions;
+
+    /** Offset of the current row of each slot's wiring tables: the setting
+     *  times the alphabet size for rotating rotors, and 0 otherwise. */
+    private final int[] _base;
+
+    /** Scratch space for advanceMachine(). */
+    private final boolean[] _willRotate;
+
+    /** Engine used to convert characters. */
+    private Engine _engine = Engine.COMPILED;
+
+    /** Approximate bound on the memory used by _cache, in bytes. */
+    private long _cacheLimit = DEFAULT_CACHE_LIMIT;
+
+    /** Counts my conversions, or null if they are not counted. */
+    private Metrics _metrics;
+
+    /** Substitution tables by rotor settings, or null when not using the
+     *  CACHED engine. */
+    private SubstitutionCache _cache;
+
+    /** The settings of the rotating rotors, encoded as a number whose
+     *  digits (in base alphabet size) are the settings. */
+    private long _stateKey;
+
+    /** Weight of each slot's setting in _stateKey; 0 for slots whose
+     *  rotors do not rotate. */
+    private final long[] _keyWeight;
+
+    /** True iff every combination of settings fits in _stateKey. */
+    private boolean _keyFits;
+
+    /** Approximate bytes of bookkeeping per cached table, beyond its
+     *  entries. */
+    private static final int TABLE_OVERHEAD = 48;
+
+    /** _toNotch[K] is the number of steps from setting K of the fast
+     *  rotor until it is at a notch, or -1 if it has no notches. */
+    private int[] _toNotch;
+
+    /** Number of coming calls of advanceMachine() in which only the fast
+     *  rotor moves, as found by quietSteps(); 0 if not known. */
+    private long _quietSteps;
+
+    /** Scratch space for stateAt(). */
+    private final boolean[] _jumpRotate;
+
+    /** Number of settings stateAt() remembers while looking for a
+     *  repeated state. */
+    private static final int MAX_JUMP_STATES = 1 << 20;
+
+    /** Smallest number of characters worth converting on their own by
+     *  convertParallel. */
+    static final int MIN_SEGMENT = 1 << 16;
 
-    /** Rotors actually used in this machine. */
-    private ArrayList<Rotor> machineRotors = new ArrayList<>();
+    /** Number of segments convertParallel makes per thread, so that
+     *  threads finishing early can take more. */
+    private static final int SEGMENTS_PER_THREAD = 4;
 
-    /** Declares plugboard as a permutation. */
-    private Permutation plugboardContainer;
+    /** Upper bound on the number of cached tables. */
+    private static final long MAX_CACHED_TABLES = 1 << 24;
 
 }
@@ -0,0 +1,98 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/** The unchanging description of an Enigma machine read from a
+ *  configuration: its alphabet, number of rotor slots and pawls, and the
+ *  rotors available to it.  A MachineSpec is never modified after it is
+ *  made, so one parsed configuration can be shared by any number of
+ *  machines on any number of threads without locking; each Machine holds
+ *  only its own rotor selection, settings and plugboard.
+ *  @author Arhan Vohra
+ */
+final class MachineSpec {
+
+    /** A description of machines with alphabet ALPHA, 1 < NUMROTORS rotor
+     *  slots and 0 <= PAWLS < NUMROTORS pawls, which may use any of
+     *  ALLROTORS. */
+    MachineSpec(Alphabet alpha, int numRotors, int pawls,
+                List<Rotor> allRotors) {
+        this(alpha, numRotors, pawls, specs(allRotors));
+    }
+
+    /** A description of machines with alphabet ALPHA, NUMROTORS rotor
+     *  slots and PAWLS pawls, which may use any of ROTORS. */
+    MachineSpec(Alphabet alpha, int numRotors, int pawls,
+                RotorSpec[] rotors) {
+        _alphabet = alpha;
+        _numRotors = numRotors;
+        _numPawls = pawls;
+        _rotors = Collections.unmodifiableList(
+            new ArrayList<>(Arrays.asList(rotors)));
+        _byName = new HashMap<>(2 * rotors.length);
+        for (RotorSpec r : rotors) {
+            _byName.putIfAbsent(r.name(), r);
+        }
+    }
+
+    /** Return the descriptions of ROTORS. */
+    private static RotorSpec[] specs(List<Rotor> rotors) {
+        RotorSpec[] specs = new RotorSpec[rotors.size()];
+        for (int i = 0; i < specs.length; i++) {
+            specs[i] = new RotorSpec(rotors.get(i));
+        }
+        return specs;
+    }
+
+    /** Return a new machine of this description, with no rotors
+     *  inserted. */
+    Machine newMachine() {
+        return new Machine(this);
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the number of rotor slots. */
+    int numRotors() {
+        return _numRotors;
+    }
+
+    /** Return the number of pawls (and thus rotating rotors). */
+    int numPawls() {
+        return _numPawls;
+    }
+
+    /** Return the available rotors, in the order they were given. */
+    List<RotorSpec> rotors() {
+        return _rotors;
+    }
+
+    /** Return the first of the available rotors named NAME, or null if
+     *  there is none. */
+    RotorSpec rotor(String name) {
+        return _byName.get(name);
+    }
+
+    /** Alphabet of the machine. */
+    private final Alphabet _alphabet;
+
+    /** Number of rotor slots. */
+    private final int _numRotors;
+
+    /** Number of pawls. */
+    private final int _numPawls;
+
+    /** All available rotors. */
+    private final List<RotorSpec> _rotors;
+
+    /** The first of _rotors with each name, by name, so that settings
+     *  lines can be looked up without scanning _rotors. */
+    private final HashMap<String, RotorSpec> _byName;
+}
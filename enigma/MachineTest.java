@@ -0,0 +1,425 @@
+package enigma;
+
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.Timeout;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import static enigma.TestUtils.*;
+
+/** The suite of all JUnit tests for the Machine class.
+ *  @author Arhan Vohra
+ */
+public class MachineTest {
+
+    /** Testing time limit. */
+    @Rule
+    public Timeout globalTimeout = Timeout.seconds(5);
+
+    /* ***** TESTING UTILITIES ***** */
+
+    /** Return a 5-slot, 3-pawl machine with the naval rotors, set up with
+     *  rotors B Beta I II III at SETTING and plugboard PLUGBOARD. */
+    private Machine navalMachine(String setting, String plugboard) {
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        rotors.add(new Reflector("B", new Permutation(NAVALA.get("B"),
+                                                      UPPER)));
+        rotors.add(new FixedRotor("Beta",
+                                  new Permutation(NAVALA.get("Beta"), UPPER)));
+        rotors.add(new MovingRotor("I",
+                                   new Permutation(NAVALA.get("I"), UPPER),
+                                   "Q"));
+        rotors.add(new MovingRotor("II",
+                                   new Permutation(NAVALA.get("II"), UPPER),
+                                   "E"));
+        rotors.add(new MovingRotor("III",
+                                   new Permutation(NAVALA.get("III"), UPPER),
+                                   "V"));
+        Machine M = new Machine(UPPER, 5, 3, rotors);
+        M.insertRotors(new String[] {"B", "Beta", "I", "II", "III"});
+        M.setRotors(setting);
+        M.setPlugboard(new Permutation(plugboard, UPPER));
+        return M;
+    }
+
+    /** Return a message of LEN pseudo-random upper-case letters. */
+    private String randomMessage(int len) {
+        StringBuilder msg = new StringBuilder();
+        long seed = len;
+        for (int i = 0; i < len; i += 1) {
+            seed = seed * 6364136223846793005L + 1442695040888963407L;
+            msg.append(UPPER_STRING.charAt((int) ((seed >>> 33) % 26)));
+        }
+        return msg.toString();
+    }
+
+    /* ***** TESTS ***** */
+
+    @Test
+    public void checkKnownMessage() {
+        Machine M = navalMachine("AAAA", "(AQ) (EP)");
+        assertEquals("IHBDQ QMTQZ", M.convert("HELLO WORLD"));
+        M.setRotors("AAAA");
+        assertEquals("HELLO WORLD", M.convert("IHBDQ QMTQZ"));
+    }
+
+    @Test
+    public void checkDoubleStep() {
+        Machine M = navalMachine("AADU", "");
+        M.convert("AAA");
+        assertEquals("A", 0, M.setting(1));
+        assertEquals("I", 1, M.setting(2));
+        assertEquals("II", 5, M.setting(3));
+        assertEquals("III", 23, M.setting(4));
+    }
+
+    @Test
+    public void checkStepsAfterReset() {
+        Machine M = navalMachine("AAAA", "");
+        M.convert("AAAAA");
+        M.setRotors("AADU");
+        M.convert("AAA");
+        assertEquals("I", 1, M.setting(2));
+        assertEquals("II", 5, M.setting(3));
+        assertEquals("III", 23, M.setting(4));
+        M.restore(navalMachine("AADU", "").stateAt(0));
+        M.convert("AAA");
+        assertEquals("II after restore", 5, M.setting(3));
+        assertEquals("III after restore", 23, M.setting(4));
+    }
+
+    @Test
+    public void checkSteppingRule() {
+        Machine M = navalMachine("AADT", "");
+        int[] expected = new int[5];
+        for (int slot = 1; slot < 5; slot += 1) {
+            expected[slot] = M.setting(slot);
+        }
+        int doubleSteps = 0;
+        for (int step = 0; step < 26 * 26 * 26 + 100; step += 1) {
+            boolean[] moves = new boolean[5];
+            for (int slot = 2; slot < 5; slot += 1) {
+                moves[slot] = slot == 4
+                    || M.rotor(slot + 1).atNotch(expected[slot + 1])
+                    || M.rotor(slot).atNotch(expected[slot]);
+                if (slot < 4 && moves[slot]
+                    && !M.rotor(slot + 1).atNotch(expected[slot + 1])) {
+                    doubleSteps += 1;
+                }
+            }
+            for (int slot = 2; slot < 5; slot += 1) {
+                if (moves[slot]) {
+                    expected[slot] = (expected[slot] + 1) % 26;
+                }
+            }
+            M.advanceMachine();
+            for (int slot = 1; slot < 5; slot += 1) {
+                assertEquals("step " + step + ", slot " + slot,
+                             expected[slot], M.setting(slot));
+            }
+        }
+        assertTrue("no double step", doubleSteps > 0);
+    }
+
+    @Test
+    public void checkEditableMessage() {
+        Machine M = navalMachine("AXLE", "(YF) (ZH) (AB)");
+        EditableMessage message = new EditableMessage(M, 100);
+        String msg = randomMessage(2000);
+        message.append(msg.substring(0, 1500));
+        message.append(msg.substring(1500));
+        assertEquals("append", 500, message.lastConverted());
+        message.replace(1750, 1760, "HELLO WORLD");
+        assertTrue("edit not bounded", message.lastConverted() < 400);
+        message.replace(10, 10, "");
+        String edited = message.input();
+        assertEquals(msg.substring(0, 1750) + "HELLO WORLD"
+                     + msg.substring(1760), edited);
+        assertEquals(M.convert(edited), message.output());
+    }
+
+    @Test
+    public void checkFailedEdit() {
+        Machine M = navalMachine("AXLE", "(YF) (ZH) (AB)");
+        EditableMessage message = new EditableMessage(M, 4);
+        message.append("ABCDEFGHIJ KLMNOPQRST UVWXYZABCD");
+        try {
+            message.replace(25, 25, "a");
+            fail("edit with a character outside the alphabet");
+        } catch (EnigmaException excp) {
+            assertEquals("ABCDEFGHIJ KLMNOPQRST UVWXYZABCD",
+                         message.input());
+        }
+        message.replace(25, 26, "");
+        message.append("XYZ");
+        assertEquals(M.convert(message.input()), message.output());
+    }
+
+    @Test
+    public void checkCachedEngine() {
+        String msg = randomMessage(20000);
+        Machine compiled = navalMachine("AXLE", "(YF) (ZH) (AB)");
+        Machine cached = navalMachine("AXLE", "(YF) (ZH) (AB)");
+        cached.setEngine(Machine.Engine.CACHED);
+        assertEquals(compiled.convert(msg), cached.convert(msg));
+        assertTrue("no cache hits", cached.cache().hits() > 0);
+    }
+
+    @Test
+    public void checkCacheEviction() {
+        String msg = randomMessage(3000);
+        Machine compiled = navalMachine("AXLE", "");
+        Machine cached = navalMachine("AXLE", "");
+        cached.setEngine(Machine.Engine.CACHED);
+        cached.setCacheLimit(1000);
+        assertEquals(compiled.convert(msg), cached.convert(msg));
+        assertTrue("cache overfull",
+                   cached.cache().size() <= cached.cache().capacity());
+    }
+
+    @Test
+    public void checkBulkConversion() {
+        String msg = "FROM HIS SHOULDER HIAWATHA TOOK THE CAMERA";
+        String expected = navalMachine("AXLE", "(YF)").convert(msg);
+
+        char[] dst = new char[msg.length() + 3];
+        navalMachine("AXLE", "(YF)").convert(("xx" + msg).toCharArray(),
+                                             2, msg.length(), dst, 3);
+        assertEquals(expected, new String(dst, 3, msg.length()));
+
+        CharBuffer heap = CharBuffer.allocate(msg.length());
+        CharBuffer src = CharBuffer.wrap(msg.toCharArray());
+        navalMachine("AXLE", "(YF)").convert(src, heap);
+        heap.flip();
+        assertEquals(expected, heap.toString());
+
+        CharBuffer direct =
+            ByteBuffer.allocateDirect(2 * msg.length()).asCharBuffer();
+        navalMachine("AXLE", "(YF)").convert(CharBuffer.wrap(msg), direct);
+        direct.flip();
+        assertEquals(expected, direct.toString());
+    }
+
+    @Test
+    public void checkByteConversion() {
+        String msg = "FROM HIS SHOULDER HIAWATHA TOOK THE CAMERA";
+        String expected = navalMachine("AXLE", "(YF)").convert(msg);
+        byte[] ascii = msg.getBytes(StandardCharsets.US_ASCII);
+
+        byte[] dst = new byte[msg.length() + 3];
+        navalMachine("AXLE", "(YF)").convert(ascii, 0, ascii.length, dst, 3);
+        assertEquals(expected,
+                     new String(dst, 3, msg.length(),
+                                StandardCharsets.US_ASCII));
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(msg.length());
+        navalMachine("AXLE", "(YF)").convert(ByteBuffer.wrap(ascii), direct);
+        direct.flip();
+        assertEquals(expected, StandardCharsets.US_ASCII.decode(direct)
+                     .toString());
+
+        try {
+            navalMachine("AXLE", "(YF)").convert(new byte[] {'A', -61},
+                                                 0, 2, new byte[2], 0);
+            fail("converted a byte outside the alphabet");
+        } catch (EnigmaException excp) {
+            /* Expected. */
+        }
+    }
+
+    @Test
+    public void checkJumpAhead() {
+        long[] jumps = {0, 1, 2, 25, 26, 27, 650, 651, 16900, 16901, 40000};
+        for (long n : jumps) {
+            Machine stepped = navalMachine("AQDU", "");
+            Machine jumped = navalMachine("AQDU", "");
+            for (long i = 0; i < n; i += 1) {
+                stepped.advanceMachine();
+            }
+            jumped.jumpAhead(n);
+            for (int slot = 0; slot < 5; slot += 1) {
+                assertEquals(msg("jump", "%d steps, slot %d", n, slot),
+                             stepped.setting(slot), jumped.setting(slot));
+            }
+        }
+        Machine far = navalMachine("AQDU", "");
+        int[] state = far.stateAt(1_000_000_000_000L + 3);
+        far.jumpAhead(3);
+        assertArrayEquals(state, far.stateAt(1_000_000_000_000L));
+    }
+
+    @Test
+    public void checkParallelConversion() {
+        String msg = randomMessage(5 * Machine.MIN_SEGMENT + 17);
+        Machine serial = navalMachine("AXLE", "(YF) (ZH)");
+        Machine parallel = navalMachine("AXLE", "(YF) (ZH)");
+        parallel.setEngine(Machine.Engine.CACHED);
+        SubstitutionCache cache = parallel.cache();
+        char[] src = msg.toCharArray();
+        char[] dst = new char[src.length];
+        parallel.convertParallel(src, 0, src.length, dst, 0,
+                                 new ForkJoinPool(4));
+        assertEquals(serial.convert(msg), new String(dst));
+        assertSame(cache, parallel.cache());
+        for (int slot = 0; slot < 5; slot += 1) {
+            assertEquals(serial.setting(slot), parallel.setting(slot));
+        }
+    }
+
+    @Test
+    public void checkSharedSpec() throws Exception {
+        String msg = randomMessage(50000);
+        Machine model = navalMachine("AXLE", "(YF) (ZH)");
+        String expected = model.convert(msg);
+        MachineSpec spec = model.spec();
+        String[] results = new String[4];
+        Thread[] threads = new Thread[results.length];
+        for (int t = 0; t < threads.length; t += 1) {
+            int k = t;
+            threads[t] = new Thread(() -> {
+                Machine M = spec.newMachine();
+                M.insertRotors(new String[] {"B", "Beta", "I", "II", "III"});
+                M.setRotors("AXLE");
+                M.setPlugboard(new Permutation("(YF) (ZH)", UPPER));
+                results[k] = M.convert(msg);
+            });
+            threads[t].start();
+        }
+        for (int t = 0; t < threads.length; t += 1) {
+            threads[t].join();
+            assertEquals(expected, results[t]);
+        }
+        assertEquals("III", model.rotor(4).name());
+        assertTrue(model.rotor(4).atNotch(UPPER.toInt('V')));
+    }
+
+    @Test
+    public void checkRotorLookup() {
+        ArrayList<Rotor> rotors = new ArrayList<>();
+        rotors.add(new Reflector("B", new Permutation(NAVALA.get("B"),
+                                                      UPPER)));
+        rotors.add(new MovingRotor("I",
+                                   new Permutation(NAVALA.get("I"), UPPER),
+                                   "Q"));
+        rotors.add(new MovingRotor("I",
+                                   new Permutation(NAVALA.get("II"), UPPER),
+                                   "E"));
+        MachineSpec spec = new MachineSpec(UPPER, 2, 1, rotors);
+        assertSame(spec.rotors().get(1), spec.rotor("I"));
+        assertSame(spec.rotors().get(0), spec.rotor("B"));
+        assertNull(spec.rotor("II"));
+    }
+
+    @Test
+    public void checkLockstep() {
+        MachineSpec spec = navalMachine("AAAA", "").spec();
+        Lockstep lockstep = new Lockstep();
+        int n = 37;
+        Machine[] machines = new Machine[n];
+        int[][] letters = new int[n][];
+        int[] lengths = new int[n];
+        String[] expected = new String[n];
+        for (int k = 0; k < n; k += 1) {
+            Machine M = spec.newMachine();
+            M.insertRotors(new String[] {"B", "Beta", "I", "II", "III"});
+            M.setRotors(randomMessage(k + 4).substring(k, k + 4));
+            M.setPlugboard(new Permutation(k % 2 == 0 ? "(YF) (ZH)"
+                                           : "", UPPER));
+            machines[k] = M;
+            String msg = randomMessage(50 * k);
+            letters[k] = new int[msg.length()];
+            for (int t = 0; t < msg.length(); t += 1) {
+                letters[k][t] = UPPER.toInt(msg.charAt(t));
+            }
+            lengths[k] = msg.length() - k % 3;
+            expected[k] = M.copy().convert(msg.substring(0, lengths[k]));
+        }
+        lockstep.convert(machines, letters, lengths);
+        for (int k = 0; k < n; k += 1) {
+            StringBuilder actual = new StringBuilder();
+            for (int t = 0; t < lengths[k]; t += 1) {
+                actual.append(UPPER.toChar(letters[k][t]));
+            }
+            assertEquals(expected[k], actual.toString());
+        }
+        String after = machines[n - 1].copy().convert("HELLO");
+        Machine check = spec.newMachine();
+        check.insertRotors(new String[] {"B", "Beta", "I", "II", "III"});
+        check.restore(machines[n - 1].stateAt(0));
+        check.setPlugboard(new Permutation("(YF) (ZH)", UPPER));
+        assertEquals(check.convert("HELLO"), after);
+    }
+
+    @Test
+    public void checkMetrics() {
+        String msg = "FROM HIS SHOULDER HIAWATHA TOOK THE CAMERA";
+        Machine M = navalMachine("AXLE", "(YF)");
+        Metrics metrics = new Metrics();
+        M.setMetrics(metrics);
+        M.convert(msg);
+        M.copy().convert(msg.getBytes(StandardCharsets.US_ASCII), 0,
+                         msg.length(), new byte[msg.length()], 0);
+        assertEquals(2L * msg.length(), metrics.getCharactersConverted());
+        M.setMetrics(null);
+        M.convert(msg);
+        assertEquals(2L * msg.length(), metrics.getCharactersConverted());
+
+        for (long nanos = 1; nanos <= 100; nanos += 1) {
+            metrics.session(nanos * 1000);
+        }
+        assertEquals(100, metrics.getSessions());
+        assertEquals(100000, metrics.getSessionLatencyMax());
+        long p50 = metrics.getSessionLatencyP50();
+        assertTrue("median " + p50, p50 >= 50000 && p50 <= 50000 * 17 / 16);
+        long p99 = metrics.getSessionLatencyP99();
+        assertTrue("p99 " + p99, p99 >= 99000 && p99 <= 100000);
+    }
+
+    @Test
+    public void checkRotorEvents() throws Exception {
+        Path file = Files.createTempFile("rotors", ".jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(RotorEvent.class);
+            recording.start();
+            navalMachine("AXLE", "(YF)");
+            recording.stop();
+            recording.dump(file);
+            ArrayList<String> seen = new ArrayList<>();
+            for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+                seen.add(event.getString("operation") + " "
+                         + event.getString("argument"));
+            }
+            assertTrue(seen.toString(),
+                       seen.contains("insertRotors B Beta I II III"));
+            assertTrue(seen.toString(), seen.contains("setRotors AXLE"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    public void checkSubstitutionCache() {
+        SubstitutionCache cache = new SubstitutionCache(3, 2);
+        for (long k = 0; k < 3; k += 1) {
+            cache.claim(k * 1024)[0] = (int) k;
+        }
+        assertEquals(0, cache.get(0)[0]);
+        cache.claim(4096)[0] = 4;
+        assertNull(cache.get(1024));
+        assertEquals(0, cache.get(0)[0]);
+        assertEquals(2, cache.get(2048)[0]);
+        assertEquals(4, cache.get(4096)[0]);
+    }
+
+}
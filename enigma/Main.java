@@ -1,13 +1,25 @@
 package enigma;
 
 import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.PrintStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.InputMismatchException;
 import java.util.Scanner;
 import java.util.NoSuchElementException;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import jdk.jfr.FlightRecorder;
 
 import static enigma.EnigmaException.error;
 
@@ -18,14 +30,82 @@ import static enigma.EnigmaException.error;
 public final class Main {
 
     /** Process a sequence of encryptions and decryptions, as
-     *  specified by ARGS, where 1 <= ARGS.length <= 3.
+     *  specified by ARGS, where 1 <= ARGS.length <= 3, not counting
+     *  options.
      *  ARGS[0] is the name of a configuration file.
      *  ARGS[1] is optional; when present, it names an input file
      *  containing messages.  Otherwise, input comes from the standard
      *  input.  ARGS[2] is optional; when present, it names an output
      *  file for processed messages.  Otherwise, output goes to the
      *  standard output. Exits normally if there are no errors in the input;
-     *  otherwise with code 1. */
+     *  otherwise with code 1.
+     *
+     *  Options have the form --NAME or --NAME=VALUE and may appear
+     *  anywhere among ARGS:
+     *    --engine=compiled|cached  selects the machine's Engine.
+     *    --cache-limit=BYTES       bounds the cached engine's tables.
+     *    --mmap                    memory-maps the input and output files,
+     *                              which must both be given.
+     *    --parallel[=THREADS]      converts long stretches of message
+     *                              lines on several threads.
+     *    --config-cache[=FILE]     keeps the compiled configuration in FILE
+     *                              (by default, the configuration file's
+     *                              name followed by .cache), recompiling
+     *                              it whenever the configuration changes.
+     *    --serve=ADDRESS           instead of processing a message file,
+     *                              serves requests from other processes
+     *                              at ADDRESS (a loopback TCP port, or
+     *                              unix:PATH); see EnigmaServer.  Takes
+     *                              only the configuration file.
+     *    --batch[=THREADS]         converts whole sessions (a settings
+     *                              line and its messages) independently
+     *                              on several threads, each with its own
+     *                              machine; takes precedence over
+     *                              --parallel.
+     *    --lockstep                with --batch, converts consecutive
+     *                              sessions that use the same rotors
+     *                              together, as one task (see
+     *                              Lockstep).
+     *    --group=SIZE              prints messages in groups of SIZE
+     *                              characters (by default, 5).
+     *    --metrics[=summary]       counts characters converted, output
+     *                              bytes and the time spent reading the
+     *                              configuration, applying settings and
+     *                              processing each session, publishing
+     *                              them over JMX as enigma:type=Metrics
+     *                              while running (see Metrics), and with
+     *                              =summary, printing them on the standard
+     *                              error at the end.
+     *    --crib=TEXT               instead of converting messages,
+     *                              searches the configuration's rotors
+     *                              for the settings under which TEXT
+     *                              enciphers to the input, which is read
+     *                              as one ciphertext with blanks and line
+     *                              breaks ignored, and prints each
+     *                              candidate as a settings line (see
+     *                              CribSearch).  Uses the threads of
+     *                              --parallel if given.
+     *    --crib-at=N               with --crib, places TEXT at character N
+     *                              of the ciphertext (by default, 0).
+     *    --attack[=RESULTS]        instead of converting messages,
+     *                              searches the configuration's rotors
+     *                              and plugboards for the settings of the
+     *                              input, read as for --crib, by the
+     *                              statistics of the decryptions alone,
+     *                              and prints the best RESULTS (by
+     *                              default, 1), each as a settings line
+     *                              and the decryption under it (see
+     *                              KeySearch).  Uses the threads of
+     *                              --parallel if given.
+     *    --ngrams=FILE             with --attack, scores decryptions by
+     *                              the n-gram counts in FILE, or the
+     *                              compiled n-gram table FILE, as well as
+     *                              by index of coincidence.  Counts are
+     *                              compiled into FILE.bin, which later
+     *                              runs map and share (see NgramTable).
+     *    --ngram-length=N          with --ngrams, reads FILE as a corpus
+     *                              of running text and counts its
+     *                              N-grams. */
     public static void main(String... args) {
         try {
             new Main(args).process();
@@ -38,23 +118,160 @@ public final class Main {
 
     /** Check ARGS and open the necessary files (see comment on main). */
     Main(String[] args) {
+        ArrayList<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith("--")) {
+                addOption(arg);
+            } else {
+                files.add(arg);
+            }
+        }
+        args = files.toArray(new String[0]);
         if (args.length < 1 || args.length > 3) {
             throw error("Only 1, 2, or 3 command-line arguments allowed");
         }
+        long group = longOption("group", DEFAULT_GROUP_SIZE);
+        if (group < 1 || group > Integer.MAX_VALUE / 2) {
+            throw error("bad value for --group");
+        }
+        _groupSize = (int) group;
+        if (option("lockstep") != null && option("batch") == null) {
+            throw error("--lockstep requires --batch");
+        }
+        if (option("crib-at") != null && option("crib") == null) {
+            throw error("--crib-at requires --crib");
+        }
+        if (option("crib") != null
+            && (option("serve") != null || option("mmap") != null
+                || option("batch") != null)) {
+            throw error("--crib cannot be used with --serve, --mmap or"
+                        + " --batch");
+        }
+        if (option("ngrams") != null && option("attack") == null) {
+            throw error("--ngrams requires --attack");
+        }
+        if (option("ngram-length") != null && option("ngrams") == null) {
+            throw error("--ngram-length requires --ngrams");
+        }
+        if (option("attack") != null
+            && (option("serve") != null || option("mmap") != null
+                || option("batch") != null || option("crib") != null)) {
+            throw error("--attack cannot be used with --serve, --mmap,"
+                        + " --batch or --crib");
+        }
+        if (option("metrics") != null) {
+            if (!option("metrics").isEmpty()
+                && !option("metrics").equals("summary")) {
+                throw error("bad value for --metrics");
+            }
+            _metrics = new Metrics();
+            _printMetrics = !option("metrics").isEmpty();
+        }
+
+        if (option("config-cache") != null) {
+            byte[] text = readBytes(args[0]);
+            _configDigest = ConfigCache.digest(text);
+            _configCache = Paths.get(option("config-cache").isEmpty()
+                                     ? args[0] + ".cache"
+                                     : option("config-cache"));
+            _configText = text;
+        } else {
+            _config = getInput(args[0]);
+        }
 
-        _config = getInput(args[0]);
+        if (option("serve") != null) {
+            if (args.length != 1) {
+                throw error("--serve takes only a configuration file");
+            }
+            _serveAddress = option("serve");
+            return;
+        }
+
+        if (option("mmap") != null) {
+            if (args.length != 3) {
+                throw error("--mmap requires input and output files");
+            }
+            _inputName = args[1];
+            _outputName = args[2];
+            return;
+        }
 
         if (args.length > 1) {
-            _input = getInput(args[1]);
+            _input = getMessages(args[1]);
+            _closeInput = true;
         } else {
-            _input = new Scanner(System.in);
+            _input = new MessageInput(
+                new FileInputStream(FileDescriptor.in).getChannel(),
+                Charset.defaultCharset());
         }
 
         if (args.length > 2) {
             _output = getOutput(args[2]);
+            _closeOutput = true;
         } else {
-            _output = System.out;
+            _output = new MessageOutput(
+                new FileOutputStream(FileDescriptor.out).getChannel(),
+                Charset.defaultCharset());
+        }
+    }
+
+    /** Record the option ARG, which has the form --NAME or --NAME=VALUE. */
+    private void addOption(String arg) {
+        int eq = arg.indexOf('=');
+        String name = eq < 0 ? arg.substring(2) : arg.substring(2, eq);
+        if (!Arrays.asList(OPTIONS).contains(name)) {
+            throw error("unknown option %s", arg);
+        }
+        _options.put(name, eq < 0 ? "" : arg.substring(eq + 1));
+    }
+
+    /** Return the value of option NAME, or null if it was not given. */
+    private String option(String name) {
+        return _options.get(name);
+    }
+
+    /** Return the value of option NAME as a number, or DEFAULTVALUE if it
+     *  was not given. */
+    private long longOption(String name, long defaultValue) {
+        String value = option(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException excp) {
+            throw error("bad value for --%s: %s", name, value);
+        }
+    }
+
+    /** Apply the options that tune machine M. */
+    private void configure(Machine M) {
+        String engine = option("engine");
+        if (engine != null) {
+            try {
+                M.setEngine(Machine.Engine.valueOf(engine.toUpperCase()));
+            } catch (IllegalArgumentException excp) {
+                throw error("unknown engine %s", engine);
+            }
+        }
+        M.setCacheLimit(longOption("cache-limit",
+                                   Machine.DEFAULT_CACHE_LIMIT));
+        M.setMetrics(_metrics);
+        if (option("parallel") != null) {
+            _pool = new ForkJoinPool(threadsOption("parallel"));
+        }
+    }
+
+    /** Return the number of threads requested by option NAME, whose value
+     *  defaults to the number of available processors. */
+    private int threadsOption(String name) {
+        long threads = option(name).isEmpty()
+            ? Runtime.getRuntime().availableProcessors()
+            : longOption(name, 1);
+        if (threads < 1 || threads > Short.MAX_VALUE) {
+            throw error("bad value for --%s", name);
         }
+        return (int) threads;
     }
 
     /** Return a Scanner reading from the file named NAME. */
@@ -66,54 +283,434 @@ public final class Main {
         }
     }
 
-    /** Return a PrintStream writing to the file named NAME. */
-    private PrintStream getOutput(String name) {
+    /** Return the contents of the file named NAME. */
+    private byte[] readBytes(String name) {
+        try {
+            return Files.readAllBytes(Paths.get(name));
+        } catch (IOException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** Return a MessageInput reading from the file named NAME. */
+    private MessageInput getMessages(String name) {
+        try {
+            return new MessageInput(FileChannel.open(Paths.get(name)),
+                                    Charset.defaultCharset());
+        } catch (IOException excp) {
+            throw error("could not open %s", name);
+        }
+    }
+
+    /** Return a MessageOutput writing to the file named NAME. */
+    private MessageOutput getOutput(String name) {
         try {
-            return new PrintStream(new File(name));
+            return new MessageOutput(
+                FileChannel.open(Paths.get(name), StandardOpenOption.CREATE,
+                                 StandardOpenOption.WRITE,
+                                 StandardOpenOption.TRUNCATE_EXISTING),
+                Charset.defaultCharset());
         } catch (IOException excp) {
             throw error("could not open %s", name);
         }
     }
 
+    /** Process the messages as for processMessages, publishing _metrics
+     *  meanwhile if they are wanted. */
+    void process() {
+        if (_metrics == null) {
+            processMessages();
+            return;
+        }
+        if (_output != null) {
+            _output.setMetrics(_metrics);
+        }
+        _metrics.register();
+        try {
+            processMessages();
+        } finally {
+            _metrics.unregister();
+            if (_printMetrics) {
+                System.err.print(_metrics.summary());
+            }
+        }
+    }
+
     /** Configure an Enigma machine from the contents of configuration
      *  file _config and apply it to the messages in _input, sending the
      *  results to _output. */
-    private void process() {
+    private void processMessages() {
         Machine processingMachine = readConfig();
-        String settings = "";
-        if (!_input.hasNext("\\*")) {
-            throw error("bad settings");
+        configure(processingMachine);
+        if (_serveAddress != null) {
+            ServerSocketChannel server = EnigmaServer.listen(_serveAddress);
+            System.out.println("listening at "
+                               + EnigmaServer.describe(server));
+            System.out.flush();
+            new EnigmaServer(processingMachine, this::setUp, _groupSize)
+                .serve(server);
+            return;
+        }
+        if (_inputName != null) {
+            new MappedProcessor(processingMachine, _alphabet, this::setUp,
+                                _groupSize)
+                .process(Paths.get(_inputName), Paths.get(_outputName));
+            return;
+        }
+        try {
+            if (option("crib") != null) {
+                searchCrib(processingMachine.spec());
+                return;
+            }
+            if (option("attack") != null) {
+                searchKey(processingMachine.spec());
+                return;
+            }
+            String settings = null;
+            while (settings == null && _input.nextLine()) {
+                int first = firstNonBlank();
+                if (first < _input.length()) {
+                    if (!isSettingsLine(first)) {
+                        throw error("bad settings");
+                    }
+                    settings = lineFrom(first);
+                }
+            }
+            if (settings == null) {
+                throw error("bad settings");
+            }
+            if (option("batch") != null) {
+                _batch = new SessionBatch(threadsOption("batch"), _output,
+                                          _groupSize,
+                                          Charset.defaultCharset(),
+                                          option("lockstep") == null
+                                          ? null : new Lockstep());
+            }
+
+            while (settings != null) {
+                long start = _metrics == null ? 0 : System.nanoTime();
+                _session = FlightRecorder.isInitialized()
+                    ? new SessionEvent() : null;
+                if (_session != null) {
+                    _session.begin();
+                }
+                _timed = _session != null && _session.isEnabled();
+                long setUpStart = _timed ? System.nanoTime() : 0;
+                processingMachine.emptyRotors();
+                setUp(processingMachine, settings);
+                if (_timed) {
+                    _session.setupTime = System.nanoTime() - setUpStart;
+                    _session.rotorsOf(processingMachine);
+                }
+                if (_batch != null) {
+                    _batch.start(processingMachine.copy(), _session);
+                }
+                settings = null;
+                int blankLines = 0;
+                while (_input.nextLine()) {
+                    int first = firstNonBlank();
+                    if (first == _input.length()) {
+                        blankLines += 1;
+                    } else if (charAt(first) == '*') {
+                        if (isSettingsLine(first)) {
+                            settings = lineFrom(first);
+                        }
+                        break;
+                    } else {
+                        convertLine(processingMachine, blankLines);
+                        blankLines = 0;
+                    }
+                }
+                if (_batch != null) {
+                    _batch.end();
+                } else {
+                    flushLines(processingMachine);
+                    if (_metrics != null) {
+                        _metrics.session(System.nanoTime() - start);
+                    }
+                    if (_session != null) {
+                        _session.commit();
+                    }
+                }
+            }
+            if (_batch != null) {
+                _batch.finish();
+            }
+        } catch (RuntimeException excp) {
+            if (_batch != null) {
+                _batch.end();
+                _batch.finish();
+            }
+            throw excp;
+        } finally {
+            _output.flush();
+            if (_closeInput) {
+                _input.close();
+            }
+            if (_closeOutput) {
+                _output.close();
+            }
+        }
+    }
+
+    /** Search the rotors of SPEC for settings under which the crib given
+     *  by --crib enciphers to the ciphertext in _input at the position
+     *  given by --crib-at, printing a settings line for each candidate on
+     *  _output and a summary of the search on the standard error. */
+    private void searchCrib(MachineSpec spec) {
+        String ciphertext = readCiphertext();
+        long offset = longOption("crib-at", 0);
+        if (offset < 0 || offset > ciphertext.length()) {
+            throw error("bad value for --crib-at");
+        }
+        CribSearch search =
+            new CribSearch(spec, ciphertext,
+                           option("crib").replaceAll("\\s", ""),
+                           (int) offset);
+        ForkJoinPool pool = _pool != null ? _pool : ForkJoinPool.commonPool();
+        for (String line : search.run(pool)) {
+            _output.printLine(line);
+        }
+        System.err.println(search.summary());
+    }
+
+    /** Search the rotors and plugboards of SPEC for the settings of the
+     *  ciphertext in _input, printing the best candidates given by
+     *  --attack, each as a settings line followed by the decryption, on
+     *  _output, and a summary of the search on the standard error. */
+    private void searchKey(MachineSpec spec) {
+        long results =
+            option("attack").isEmpty() ? 1 : longOption("attack", 1);
+        if (results < 1 || results > KeySearch.CLIMBS) {
+            throw error("bad value for --attack");
+        }
+        long length = longOption("ngram-length", 0);
+        if (length < 0 || length > Integer.MAX_VALUE
+            || option("ngram-length") != null && length == 0) {
+            throw error("bad value for --ngram-length");
+        }
+        NgramTable ngrams = option("ngrams") == null ? null
+            : NgramTable.open(Paths.get(option("ngrams")), spec.alphabet(),
+                              (int) length);
+        KeySearch search = new KeySearch(spec, readCiphertext(), ngrams);
+        ForkJoinPool pool = _pool != null ? _pool : ForkJoinPool.commonPool();
+        for (String[] found : search.run(pool, (int) results)) {
+            _output.printLine(found[0]);
+            char[] text = found[1].toCharArray();
+            _output.printGrouped(text, 0, text.length, _groupSize);
+        }
+        System.err.println(search.summary());
+    }
+
+    /** Return the whole of _input, with blanks and line breaks
+     *  removed. */
+    private String readCiphertext() {
+        StringBuilder ciphertext = new StringBuilder();
+        while (_input.nextLine()) {
+            char[] line = _input.line();
+            for (int k = 0; k < _input.length(); k += 1) {
+                if (!Character.isWhitespace(line[k])) {
+                    ciphertext.append(line[k]);
+                }
+            }
         }
+        return ciphertext.toString();
+    }
 
-        while (_input.hasNext("\\*")) {
-            processingMachine.emptyRotors();
-            settings = _input.nextLine();
-            while ((settings.matches("\\s")) || settings.equals("")) {
-                settings = _input.nextLine();
+    /** Return the index of the first non-blank character of the current
+     *  input line, or its length if there is none. */
+    private int firstNonBlank() {
+        int k;
+        for (k = 0; k < _input.length(); k += 1) {
+            if (!Character.isWhitespace(charAt(k))) {
+                break;
+            }
+        }
+        return k;
+    }
+
+    /** Return character K of the current input line, reading it from the
+     *  line's bytes if it is ASCII, so that message lines need never be
+     *  made into characters. */
+    private char charAt(int k) {
+        return _input.ascii() ? (char) _input.bytes()[k] : _input.line()[k];
+    }
+
+    /** Return true iff the current input line, whose first non-blank
+     *  character is at FIRST, starts with the token "*". */
+    private boolean isSettingsLine(int first) {
+        return charAt(first) == '*'
+            && (first + 1 == _input.length()
+                || Character.isWhitespace(charAt(first + 1)));
+    }
+
+    /** Return the current input line starting at index FIRST. */
+    private String lineFrom(int first) {
+        return new String(_input.line(), first, _input.length() - first);
+    }
+
+    /** Convert the current input line with M and print the result,
+     *  preceded by BLANKLINES empty lines.  When converting in parallel,
+     *  the line is instead queued for flushLines. */
+    private void convertLine(Machine M, int blankLines) {
+        int len = _input.length();
+        if (_timed) {
+            _session.messageLength += len;
+        }
+        if (_batch != null) {
+            _batch.addLine(_input.line(), len, blankLines);
+            return;
+        }
+        if (_pool != null) {
+            queueLine(M, blankLines);
+            return;
+        }
+        for (; blankLines > 0; blankLines -= 1) {
+            _output.println();
+        }
+        long start = _timed ? System.nanoTime() : 0;
+        boolean bytes = _input.ascii() && _alphabet.isAscii();
+        try {
+            if (bytes) {
+                if (_messageBytes.length < len) {
+                    _messageBytes =
+                        new byte[Math.max(len, 2 * _messageBytes.length)];
+                }
+                M.convert(_input.bytes(), 0, len, _messageBytes, 0);
+            } else {
+                if (_message.length < len) {
+                    _message = new char[Math.max(len, 2 * _message.length)];
+                }
+                M.convert(_input.line(), 0, len, _message, 0);
             }
+        } catch (EnigmaException b) {
+            throw error("ind err");
+        }
+        long converted = _timed ? System.nanoTime() : 0;
+        if (bytes) {
+            _output.printGrouped(_messageBytes, 0, len, _groupSize);
+        } else {
+            printMessageLine(_message, 0, len);
+        }
+        if (_timed) {
+            _session.convertTime += converted - start;
+            _session.outputTime += System.nanoTime() - converted;
+        }
+    }
 
-            setUp(processingMachine, settings);
-            while (_input.hasNext("[^\\*]([\\S\\s]*)")) {
-                String toConvert = _input.nextLine();
+    /** Add the current input line, preceded by BLANKLINES empty lines, to
+     *  the lines waiting to be converted with M, first converting those
+     *  already waiting if there is no room. */
+    private void queueLine(Machine M, int blankLines) {
+        int len = _input.length();
+        if (_lines > 0 && (_queued + len > PARALLEL_CHUNK
+                           || _lines == _lineEnds.length)) {
+            flushLines(M);
+        }
+        if (_queued + len > _message.length) {
+            char[] bigger = new char[Math.max(_queued + len,
+                                              2 * _message.length)];
+            System.arraycopy(_message, 0, bigger, 0, _queued);
+            _message = bigger;
+        }
+        System.arraycopy(_input.line(), 0, _message, _queued, len);
+        _queued += len;
+        _lineEnds[_lines] = _queued;
+        _lineBlanks[_lines] = blankLines;
+        _lines += 1;
+    }
+
+    /** Convert all the lines queued by queueLine with M, all at once on
+     *  _pool, and print them.  If a line cannot be converted, the lines
+     *  before it, and the empty lines preceding it, are printed before
+     *  reporting the error, just as when converting line by line. */
+    private void flushLines(Machine M) {
+        if (_lines == 0) {
+            return;
+        }
+        if (_converted.length < _queued) {
+            _converted = new char[_message.length];
+        }
+        int[] start = M.stateAt(0);
+        long startTime = _timed ? System.nanoTime() : 0;
+        try {
+            M.convertParallel(_message, 0, _queued, _converted, 0, _pool);
+        } catch (EnigmaException excp) {
+            M.restore(start);
+            int from = 0;
+            for (int k = 0; k < _lines; k += 1) {
                 try {
-                    printMessageLine(processingMachine.convert(toConvert));
+                    M.convert(_message, from, _lineEnds[k] - from,
+                              _converted, from);
                 } catch (EnigmaException b) {
+                    int blankLines = _lineBlanks[k];
+                    _lines = k;
+                    printQueuedLines();
+                    for (; blankLines > 0; blankLines -= 1) {
+                        _output.println();
+                    }
                     throw error("ind err");
                 }
+                from = _lineEnds[k];
             }
+            printQueuedLines();
+            throw error("ind err");
+        }
+        long converted = _timed ? System.nanoTime() : 0;
+        printQueuedLines();
+        if (_timed) {
+            _session.convertTime += converted - startTime;
+            _session.outputTime += System.nanoTime() - converted;
+        }
+    }
 
-            if (_input.hasNext("\\*")) {
-                if (_input.hasNext("\n")) {
-                    _output.println();
-                }
+    /** Print the first _lines queued lines, and empty the queue. */
+    private void printQueuedLines() {
+        int from = 0;
+        for (int k = 0; k < _lines; k += 1) {
+            for (int b = _lineBlanks[k]; b > 0; b -= 1) {
+                _output.println();
             }
-
+            printMessageLine(_converted, from, _lineEnds[k] - from);
+            from = _lineEnds[k];
         }
+        _lines = 0;
+        _queued = 0;
     }
 
     /** Return an Enigma machine configured from the contents of configuration
-     *  file _config. */
+     *  file _config, or from its compiled form in _configCache if that is
+     *  up to date.  In the latter case, together with setUpSimply, no
+     *  Scanner or regular expression is used at all, which noticeably
+     *  shortens short runs. */
     private Machine readConfig() {
+        long start = _metrics == null ? 0 : System.nanoTime();
+        MachineSpec spec = null;
+        if (_configCache != null) {
+            spec = ConfigCache.load(_configCache, _configDigest);
+        }
+        boolean cached = spec != null;
+        if (spec == null) {
+            spec = parseConfig();
+            if (_configCache != null) {
+                ConfigCache.save(_configCache, _configDigest, spec);
+            }
+        }
+        _alphabet = spec.alphabet();
+        Machine M = spec.newMachine();
+        if (_metrics != null) {
+            _metrics.configRead(System.nanoTime() - start, cached);
+        }
+        return M;
+    }
+
+    /** Return the description of the machine given by the contents of
+     *  configuration file _config. */
+    private MachineSpec parseConfig() {
+        if (_config == null) {
+            _config = new Scanner(new String(_configText,
+                                             Charset.defaultCharset()));
+        }
         int numRotors;
         int numPawls;
         try {
@@ -145,7 +742,8 @@ public final class Main {
         }
 
         try {
-            return new Machine(_alphabet, numRotors, numPawls, allRotors);
+            return new MachineSpec(_alphabet, numRotors, numPawls,
+                                   allRotors);
         } catch (NullPointerException excp) {
             throw error("can't make new machine");
         }
@@ -179,9 +777,27 @@ public final class Main {
         }
     }
 
+    /** Set M according to the specification given on SETTINGS, as for
+     *  applySettings, counting the time taken in _metrics. */
+    private void setUp(Machine M, String settings) {
+        if (_metrics == null) {
+            applySettings(M, settings);
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            applySettings(M, settings);
+        } finally {
+            _metrics.setUp(System.nanoTime() - start);
+        }
+    }
+
     /** Set M according to the specification given on SETTINGS,
      *  which must have the format specified in the assignment. */
-    private void setUp(Machine M, String settings) {
+    private void applySettings(Machine M, String settings) {
+        if (setUpSimply(M, settings)) {
+            return;
+        }
         try {
             String sub = settings.substring(2);
             Scanner x = new Scanner(sub);
@@ -189,22 +805,10 @@ public final class Main {
             String nextToken;
             while (true) {
                 nextToken = x.next("[^\\(\\)]+");
-                if (M.getAllRotorsStr().contains(nextToken)) {
+                if (M.spec().rotor(nextToken) != null) {
                     rotorsToAdd.add(nextToken);
                 } else {
-                    String[] adder = new String[rotorsToAdd.size()];
-                    for (int i = 0; i < adder.length; i++) {
-                        boolean isRotor = false;
-                        for (Rotor b: allRotors) {
-                            if (b.name().equals(rotorsToAdd.get(i))) {
-                                isRotor = true;
-                            }
-                        }
-                        if (isRotor) {
-                            adder[i] = rotorsToAdd.get(i);
-                        }
-                    }
-                    M.insertRotors(adder);
+                    M.insertRotors(rotorsToAdd.toArray(new String[0]));
                     M.setRotors(nextToken);
                     if (x.hasNext()) {
                         try {
@@ -231,46 +835,187 @@ public final class Main {
 
         } catch (StringIndexOutOfBoundsException exception) {
             throw error("out of bounds");
+        } catch (NoSuchElementException exception) {
+            throw error("bad settings");
         }
 
     }
 
-    /** Print MSG in groups of five (except that the last group may
-     *  have fewer letters). */
-    private void printMessageLine(String msg) {
-        ArrayList<Character> lister = new ArrayList<>();
-        for (int a = 0; a < msg.length(); a++) {
-            if (msg.charAt(a) != ' ') {
-                lister.add(msg.charAt(a));
-            }
+    /** Set M according to SETTINGS as setUp does, splitting SETTINGS into
+     *  words by hand rather than with a Scanner, so that a short run need
+     *  not load the regular-expression classes.  Returns false, leaving M
+     *  unchanged, if SETTINGS is malformed in a way that only setUp's
+     *  Scanner reports. */
+    private boolean setUpSimply(Machine M, String settings) {
+        if (settings.length() < 2) {
+            return false;
         }
-        Iterator<Character> h = lister.iterator();
-        while (h.hasNext()) {
-            for (int i = 0; i < 5; i++) {
-                if (h.hasNext()) {
-                    _output.print(h.next());
-                }
+        ArrayList<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 2; i <= settings.length(); i++) {
+            boolean blank = i == settings.length()
+                || Character.isWhitespace(settings.charAt(i));
+            if (blank && start >= 0) {
+                words.add(settings.substring(start, i));
+                start = -1;
+            } else if (!blank && start < 0) {
+                start = i;
             }
-            if (!h.hasNext()) {
+        }
+        MachineSpec spec = M.spec();
+        int k;
+        for (k = 0; k < words.size(); k++) {
+            if (spec.rotor(words.get(k)) == null) {
                 break;
             }
-            _output.print(" ");
         }
-        _output.println();
+        if (k == words.size() || words.get(k).indexOf('(') >= 0
+            || words.get(k).indexOf(')') >= 0) {
+            return false;
+        }
+        M.insertRotors(words.subList(0, k).toArray(new String[0]));
+        M.setRotors(words.get(k));
+        if (k + 1 < words.size()) {
+            StringBuilder cycles = new StringBuilder();
+            for (int j = k + 1; j < words.size() && isCycle(words.get(j));
+                 j++) {
+                cycles.append(cycles.length() == 0 ? "" : " ");
+                cycles.append(words.get(j));
+            }
+            M.setPlugboard(new Permutation(cycles.toString(), _alphabet));
+        }
+        return true;
+    }
+
+    /** Return true iff WORD is a single plugboard cycle: a parenthesized
+     *  string of characters other than '*' and parentheses. */
+    private static boolean isCycle(String word) {
+        int last = word.length() - 1;
+        if (last < 2 || word.charAt(0) != '(' || word.charAt(last) != ')') {
+            return false;
+        }
+        for (int i = 1; i < last; i++) {
+            char c = word.charAt(i);
+            if (c == '*' || c == '(' || c == ')') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Print the LEN characters of MSG starting at OFF in groups of
+     *  _groupSize (except that the last group may have fewer letters). */
+    private void printMessageLine(char[] msg, int off, int len) {
+        _output.printGrouped(msg, off, len, _groupSize);
     }
 
     /** Alphabet used in this machine. */
     private Alphabet _alphabet;
 
     /** Source of input messages. */
-    private Scanner _input;
+    private MessageInput _input;
 
     /** Source of machine configuration. */
     private Scanner _config;
 
+    /** File holding the compiled configuration, or null if the
+     *  configuration is always parsed. */
+    private Path _configCache;
+
+    /** Digest of the text of the configuration file, when using
+     *  _configCache. */
+    private byte[] _configDigest;
+
+    /** Text of the configuration file when using _configCache, from which
+     *  _config is made only if the configuration must be parsed. */
+    private byte[] _configText;
+
     /** File for encoded/decoded messages. */
-    private PrintStream _output;
+    private MessageOutput _output;
+
+    /** Names of the input and output files when they are to be
+     *  memory-mapped, and otherwise null. */
+    private String _inputName, _outputName;
+
+    /** Number of characters in each group of printed messages. */
+    private int _groupSize;
+
+    /** Flight Recorder event for the current session, or null if Flight
+     *  Recorder has not been started. */
+    private SessionEvent _session;
+
+    /** True iff the phases of _session are being timed, which they are
+     *  only while a recording has enabled such events. */
+    private boolean _timed;
+
+    /** Counts what happens during the run, or null if not wanted. */
+    private Metrics _metrics;
+
+    /** True iff _metrics are to be printed at the end of the run. */
+    private boolean _printMetrics;
+
+    /** Address at which to serve requests, or null if not serving. */
+    private String _serveAddress;
+
+    /** True iff _input and _output, respectively, are files that we
+     *  opened, rather than the standard input and output. */
+    private boolean _closeInput, _closeOutput;
+
+    /** Buffer for the conversion of the current message line. */
+    private char[] _message = new char[INITIAL_MESSAGE];
+
+    /** Buffer for the conversion of the current message line when it is
+     *  converted as bytes. */
+    private byte[] _messageBytes = new byte[INITIAL_MESSAGE];
+
+    /** Threads converting queued message lines, or null if lines are
+     *  converted one at a time as they are read. */
+    private ForkJoinPool _pool;
+
+    /** Converts whole sessions on several threads, or null if sessions
+     *  are converted one after another with a single machine. */
+    private SessionBatch _batch;
+
+    /** Conversions of the lines queued in _message. */
+    private char[] _converted = new char[0];
+
+    /** Number of message characters queued in _message for _pool. */
+    private int _queued;
+
+    /** Number of message lines queued for _pool. */
+    private int _lines;
+
+    /** Queued line K ends at _message[_lineEnds[K]]. */
+    private int[] _lineEnds = new int[MAX_QUEUED_LINES];
+
+    /** Queued line K is to be preceded by _lineBlanks[K] empty lines. */
+    private int[] _lineBlanks = new int[MAX_QUEUED_LINES];
+
+    /** Number of message characters gathered before converting them
+     *  on _pool. */
+    private static final int PARALLEL_CHUNK = 1 << 22;
+
+    /** Maximum number of message lines gathered before converting them
+     *  on _pool. */
+    private static final int MAX_QUEUED_LINES = 1 << 16;
+
+    /** Default number of characters in each group of printed
+     *  messages. */
+    private static final int DEFAULT_GROUP_SIZE = 5;
+
+    /** Initial capacity of _message. */
+    private static final int INITIAL_MESSAGE = 256;
 
     /** All rotors for this configuration. */
     private ArrayList<Rotor> allRotors = new ArrayList<Rotor>();
+
+    /** Values of the options given on the command line, by name. */
+    private HashMap<String, String> _options = new HashMap<>();
+
+    /** Names of the recognized options. */
+    private static final String[] OPTIONS = {
+        "engine", "cache-limit", "mmap", "parallel", "batch",
+        "config-cache", "serve", "group", "lockstep", "metrics", "crib",
+        "crib-at", "attack", "ngrams", "ngram-length",
+    };
 }
@@ -0,0 +1,314 @@
+package enigma;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.function.BiConsumer;
+
+import static enigma.EnigmaException.error;
+
+/** Processes a whole message file by mapping it into memory, converting
+ *  its bytes straight into a memory-mapped output file.  Neither file is
+ *  ever held on the heap, and no Strings are made except for settings
+ *  lines, so files larger than memory can be processed.  The input is
+ *  read twice: once to compute the exact size of the grouped output, so
+ *  that the output file can be created at its final length and mapped,
+ *  and once to convert.  The first pass also applies the settings lines
+ *  and checks the message characters, so that when the input has an
+ *  error, the output file is created at the length of the lines before
+ *  it and never has to be cut back while mapped.  Requires an alphabet
+ *  of ASCII characters, and reads the input as ASCII.
+ *  @author Arhan Vohra
+ */
+class MappedProcessor {
+
+    /** Bytes of either file mapped at once. */
+    static final long WINDOW = 1L << 26;
+
+    /** A processor that converts messages with MACHINE, whose characters
+     *  are from ALPHABET, calling SETUP on MACHINE and each settings line,
+     *  and printing messages in groups of GROUP characters. */
+    MappedProcessor(Machine machine, Alphabet alphabet,
+                    BiConsumer<Machine, String> setUp, int group) {
+        _machine = machine;
+        _setUp = setUp;
+        _group = group;
+        if (!alphabet.isAscii()) {
+            throw error("memory-mapped mode requires an ASCII alphabet");
+        }
+        _chars = new byte[alphabet.size()];
+        _index = new int[ASCII];
+        for (int b = 0; b < ASCII; b++) {
+            _index[b] = alphabet.contains((char) b)
+                ? alphabet.toInt((char) b) : -1;
+        }
+        for (int k = 0; k < alphabet.size(); k++) {
+            _chars[k] = alphabet.toByte(k);
+        }
+        _separator = System.lineSeparator().getBytes();
+    }
+
+    /** Convert the messages in the file INPUT, writing the results to the
+     *  file OUTPUT.  If a message line cannot be converted, OUTPUT ends
+     *  with the lines before it. */
+    void process(Path input, Path output) {
+        try (FileChannel in = FileChannel.open(input);
+             RandomAccessFile out = new RandomAccessFile(output.toFile(),
+                                                         "rw")) {
+            long total;
+            _failure = null;
+            _lineOffset = 0;
+            try {
+                total = run(in, true);
+            } catch (EnigmaException excp) {
+                _failure = excp;
+                total = _lineOffset;
+            }
+            out.setLength(total);
+            _out = out.getChannel();
+            _outSize = total;
+            _outBase = 0;
+            _outMap = null;
+            try {
+                run(in, false);
+            } finally {
+                if (_machine.metrics() != null) {
+                    _machine.metrics().converted(_converted);
+                    _machine.metrics().output(written());
+                }
+            }
+        } catch (IOException excp) {
+            throw error("could not process %s", input);
+        }
+    }
+
+    /** Make one pass over the messages in IN, converting them to the output
+     *  unless COUNTING.  Returns the number of output bytes. */
+    private long run(FileChannel in, boolean counting) throws IOException {
+        long size = in.size();
+        long outBytes = 0;
+        int state = LINE_START;
+        boolean session = false, leadingOther = false, skipLF = false;
+        int pending = 0, letters = 0;
+        StringBuilder settings = new StringBuilder();
+
+        scan:
+        for (long base = 0; base < size; base += WINDOW) {
+            MappedByteBuffer map =
+                in.map(FileChannel.MapMode.READ_ONLY, base,
+                       Math.min(WINDOW, size - base));
+            int lim = map.limit();
+            for (int i = 0; i < lim; i++) {
+                int b = map.get(i) & BYTE_MASK;
+                if (skipLF) {
+                    skipLF = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                boolean eol = b == '\n' || b == '\r';
+                skipLF = b == '\r';
+                switch (state) {
+                case LINE_START:
+                    if (eol) {
+                        pending += session ? 1 : 0;
+                        leadingOther = false;
+                    } else if (Character.isWhitespace(b)) {
+                        leadingOther |= b != ' ';
+                    } else if (b == '*') {
+                        state = STAR;
+                    } else {
+                        if (!session) {
+                            throw error("bad settings");
+                        }
+                        if (leadingOther) {
+                            throw error("ind err");
+                        }
+                        for (; pending > 0; pending--) {
+                            outBytes += separator(counting);
+                        }
+                        _lineOffset = outBytes;
+                        if (!counting && _failure != null
+                            && outBytes == _outSize) {
+                            throw _failure;
+                        }
+                        state = MESSAGE;
+                        letters = 0;
+                        outBytes += letter(b, letters++, counting);
+                    }
+                    break;
+                case STAR:
+                    if (!eol && !Character.isWhitespace(b)) {
+                        if (!session) {
+                            throw error("bad settings");
+                        }
+                        state = STOPPED;
+                        break scan;
+                    }
+                    settings.setLength(0);
+                    settings.append('*');
+                    state = SETTINGS;
+                    if (!eol) {
+                        settings.append((char) b);
+                        break;
+                    }
+                    session = startSession(settings, counting);
+                    pending = 0;
+                    leadingOther = false;
+                    state = LINE_START;
+                    break;
+                case SETTINGS:
+                    if (eol) {
+                        session = startSession(settings, counting);
+                        pending = 0;
+                        leadingOther = false;
+                        state = LINE_START;
+                    } else {
+                        settings.append((char) b);
+                    }
+                    break;
+                default:
+                    if (eol) {
+                        outBytes += separator(counting);
+                        _lineOffset = outBytes;
+                        leadingOther = false;
+                        state = LINE_START;
+                    } else if (b != ' ') {
+                        outBytes += letter(b, letters++, counting);
+                    }
+                    break;
+                }
+            }
+        }
+
+        if (state == MESSAGE) {
+            outBytes += separator(counting);
+        } else if (state == STAR) {
+            settings.setLength(0);
+            settings.append('*');
+            startSession(settings, counting);
+        } else if (state == SETTINGS) {
+            startSession(settings, counting);
+        } else if (state == LINE_START && !session) {
+            throw error("bad settings");
+        }
+        return outBytes;
+    }
+
+    /** Set up the machine according to SETTINGS, also when COUNTING,
+     *  so that bad settings are found then.  Returns true. */
+    private boolean startSession(StringBuilder settings, boolean counting) {
+        _machine.emptyRotors();
+        _setUp.accept(_machine, settings.toString());
+        return true;
+    }
+
+    /** Output the conversion of the message byte B, which is preceded by
+     *  LETTERS other letters on its line, unless COUNTING.  Returns the
+     *  number of bytes output. */
+    private int letter(int b, int letters, boolean counting) {
+        boolean newGroup = letters > 0 && letters % _group == 0;
+        int k = b < ASCII ? _index[b] : -1;
+        if (k < 0) {
+            throw error("ind err");
+        }
+        if (!counting) {
+            if (newGroup) {
+                put((byte) ' ');
+            }
+            put(_chars[_machine.convert(k)]);
+            _converted += 1;
+        }
+        return newGroup ? 2 : 1;
+    }
+
+    /** Output a line terminator, unless COUNTING.  Returns the number of
+     *  bytes output. */
+    private int separator(boolean counting) {
+        if (!counting) {
+            for (byte b : _separator) {
+                put(b);
+            }
+        }
+        return _separator.length;
+    }
+
+    /** Write B at the next position of the output file. */
+    private void put(byte b) {
+        if (_outMap == null || !_outMap.hasRemaining()) {
+            if (_outMap != null) {
+                _outBase += _outMap.limit();
+            }
+            try {
+                _outMap = _out.map(FileChannel.MapMode.READ_WRITE, _outBase,
+                                   Math.min(WINDOW, _outSize - _outBase));
+            } catch (IOException excp) {
+                throw error("could not map output");
+            }
+        }
+        _outMap.put(b);
+    }
+
+    /** Return the number of bytes written so far. */
+    private long written() {
+        return _outMap == null ? 0 : _outBase + _outMap.position();
+    }
+
+    /** Scanning states: at the start of a line, just after a leading '*',
+     *  in a settings line, in a message line, and after a line starting
+     *  with a token other than "*" that begins with '*', which ends the
+     *  input. */
+    private static final int LINE_START = 0, STAR = 1, SETTINGS = 2,
+        MESSAGE = 3, STOPPED = 4;
+
+    /** Number of ASCII characters. */
+    private static final int ASCII = 128;
+
+    /** Mask selecting the low eight bits of an int. */
+    private static final int BYTE_MASK = 0xff;
+
+    /** The machine converting messages. */
+    private final Machine _machine;
+
+    /** Sets up _machine from a settings line. */
+    private final BiConsumer<Machine, String> _setUp;
+
+    /** Number of characters in each printed group. */
+    private final int _group;
+
+    /** Index of each ASCII character in the alphabet, or -1. */
+    private final int[] _index;
+
+    /** Each character of the alphabet, as a byte. */
+    private final byte[] _chars;
+
+    /** Line terminator, as bytes. */
+    private final byte[] _separator;
+
+    /** The output file. */
+    private FileChannel _out;
+
+    /** Final size of the output file. */
+    private long _outSize;
+
+    /** Offset in the output file of _outMap. */
+    private long _outBase;
+
+    /** Currently mapped window of the output file, or null. */
+    private MappedByteBuffer _outMap;
+
+    /** Offset in the output of the start of the line being scanned.
+     *  When the first pass stops at an error, this is the length of the
+     *  output, as a failing line is not printed in the other modes. */
+    private long _lineOffset;
+
+    /** The error the first pass stopped at, or null.  The second pass
+     *  throws it on reaching the end of the output, before the line that
+     *  caused it, if it has not met the error already. */
+    private EnigmaException _failure;
+
+    /** Number of message characters converted so far. */
+    private long _converted;
+}
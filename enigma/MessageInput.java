@@ -0,0 +1,321 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+
+import static enigma.EnigmaException.error;
+
+/** A source of input lines read in large blocks from a channel.  Bytes are
+ *  decoded a block at a time and split into lines by hand, and each line
+ *  is delivered in a reusable character array rather than as a String.
+ *  Lines end at '\n', '\r' or "\r\n".
+ *
+ *  When the input encoding treats ASCII byte by byte (see
+ *  MessageOutput.asciiCompatible), no decoder runs over the whole input:
+ *  lines are split on the raw bytes, and a line made only of ASCII bytes
+ *  is also available as those bytes (see ascii() and bytes()), so that
+ *  it can be converted without ever becoming characters.  Only lines
+ *  holding other bytes are decoded.
+ *  @author Arhan Vohra
+ */
+class MessageInput {
+
+    /** Size in bytes of the blocks read from the channel. */
+    static final int BLOCK_SIZE = 1 << 16;
+
+    /** Input lines read from IN, whose contents are encoded in CHARSET. */
+    MessageInput(ReadableByteChannel in, Charset charset) {
+        _in = in;
+        _decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        _raw = MessageOutput.asciiCompatible(charset);
+        _bytes = _raw ? ByteBuffer.allocate(BLOCK_SIZE)
+            : ByteBuffer.allocateDirect(BLOCK_SIZE);
+        _bytes.flip();
+        _chars = CharBuffer.allocate(_raw ? 0 : BLOCK_SIZE);
+        _chars.flip();
+        _line = new char[INITIAL_LINE];
+        _lineBytes = new byte[_raw ? INITIAL_LINE : 0];
+        _charsReady = true;
+    }
+
+    /** Advance to the next line, returning false if there are no more.
+     *  The line's contents are then line()[0 .. length()-1], without its
+     *  terminator. */
+    boolean nextLine() {
+        if (_raw) {
+            return nextRawLine();
+        }
+        _length = 0;
+        boolean any = false;
+        while (true) {
+            if (!_chars.hasRemaining() && !fill()) {
+                return any;
+            }
+            char[] a = _chars.array();
+            int p = _chars.position(), lim = _chars.limit();
+            if (_afterReturn) {
+                _afterReturn = false;
+                if (a[p] == '\n') {
+                    _chars.position(p + 1);
+                    continue;
+                }
+            }
+            any = true;
+            int start = p;
+            while (p < lim && a[p] != '\n' && a[p] != '\r') {
+                p += 1;
+            }
+            append(a, start, p - start);
+            if (p < lim) {
+                _afterReturn = a[p] == '\r';
+                _chars.position(p + 1);
+                return true;
+            }
+            _chars.position(p);
+        }
+    }
+
+    /** Return true iff another whole line has already been read and
+     *  decoded, so that nextLine() will not wait on the channel. */
+    boolean ready() {
+        if (_raw) {
+            byte[] a = _bytes.array();
+            int p = _bytes.position(), lim = _bytes.limit();
+            if (_afterReturn && p < lim && a[p] == '\n') {
+                p += 1;
+            }
+            for (; p < lim; p++) {
+                if (a[p] == '\n' || a[p] == '\r') {
+                    return true;
+                }
+            }
+            return false;
+        }
+        char[] a = _chars.array();
+        int p = _chars.position(), lim = _chars.limit();
+        if (_afterReturn && p < lim && a[p] == '\n') {
+            p += 1;
+        }
+        for (; p < lim; p++) {
+            if (a[p] == '\n' || a[p] == '\r') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Return the buffer holding the current line.  Its contents change
+     *  on the next call to nextLine(). */
+    char[] line() {
+        if (!_charsReady) {
+            if (_line.length < _length) {
+                _line = new char[Math.max(2 * _line.length, _length)];
+            }
+            for (int i = 0; i < _length; i++) {
+                _line[i] = (char) _lineBytes[i];
+            }
+            _charsReady = true;
+        }
+        return _line;
+    }
+
+    /** Return true iff the current line consists only of ASCII characters
+     *  and is available as bytes(). */
+    boolean ascii() {
+        return _raw && _lineBits >= 0;
+    }
+
+    /** Return the buffer holding the current line as bytes, one per
+     *  character, when ascii() is true.  Its contents change on the next
+     *  call to nextLine(). */
+    byte[] bytes() {
+        return _lineBytes;
+    }
+
+    /** Return the length of the current line. */
+    int length() {
+        return _length;
+    }
+
+    /** Close my channel. */
+    void close() {
+        try {
+            _in.close();
+        } catch (IOException excp) {
+            throw error("could not close input");
+        }
+    }
+
+    /** Advance to the next line as for nextLine(), splitting the raw
+     *  input bytes into lines. */
+    private boolean nextRawLine() {
+        int length = 0;
+        int bits = 0;
+        boolean any = false;
+        _charsReady = false;
+        while (true) {
+            if (!_bytes.hasRemaining() && !read()) {
+                break;
+            }
+            byte[] a = _bytes.array();
+            int p = _bytes.position(), lim = _bytes.limit();
+            if (_afterReturn) {
+                _afterReturn = false;
+                if (a[p] == '\n') {
+                    _bytes.position(p + 1);
+                    continue;
+                }
+            }
+            any = true;
+            int start = p;
+            while (p < lim && a[p] != '\n' && a[p] != '\r') {
+                bits |= a[p];
+                p += 1;
+            }
+            int len = p - start;
+            if (length + len > _lineBytes.length) {
+                _lineBytes = Arrays.copyOf(_lineBytes,
+                                           Math.max(2 * _lineBytes.length,
+                                                    length + len));
+            }
+            System.arraycopy(a, start, _lineBytes, length, len);
+            length += len;
+            if (p < lim) {
+                _afterReturn = a[p] == '\r';
+                _bytes.position(p + 1);
+                break;
+            }
+            _bytes.position(p);
+        }
+        _lineBits = bits;
+        _length = length;
+        if (bits < 0) {
+            decodeLine();
+        }
+        return any;
+    }
+
+    /** Decode the current line from _lineBytes, which holds _length
+     *  bytes, into _line. */
+    private void decodeLine() {
+        ByteBuffer in = ByteBuffer.wrap(_lineBytes, 0, _length);
+        int room = (int) Math.ceil(_length * _decoder.maxCharsPerByte());
+        if (_line.length < room) {
+            _line = new char[Math.max(2 * _line.length, room)];
+        }
+        CharBuffer out = CharBuffer.wrap(_line);
+        _decoder.reset();
+        _decoder.decode(in, out, true);
+        _decoder.flush(out);
+        _length = out.position();
+        _charsReady = true;
+    }
+
+    /** Read more input into _bytes, which must be empty.  Returns false
+     *  at the end of the input. */
+    private boolean read() {
+        _bytes.clear();
+        try {
+            while (_bytes.position() == 0) {
+                if (_in.read(_bytes) < 0) {
+                    break;
+                }
+            }
+        } catch (IOException excp) {
+            throw error("could not read input");
+        }
+        _bytes.flip();
+        return _bytes.hasRemaining();
+    }
+
+    /** Add LEN characters of A starting at START to the current line. */
+    private void append(char[] a, int start, int len) {
+        if (_length + len > _line.length) {
+            char[] bigger = new char[Math.max(2 * _line.length,
+                                              _length + len)];
+            System.arraycopy(_line, 0, bigger, 0, _length);
+            _line = bigger;
+        }
+        System.arraycopy(a, start, _line, _length, len);
+        _length += len;
+    }
+
+    /** Refill _chars, which must be empty, with the next decoded block of
+     *  input.  Returns false at the end of the input. */
+    private boolean fill() {
+        _chars.clear();
+        try {
+            while (_chars.position() == 0 && !_done) {
+                _decoder.decode(_bytes, _chars, _eof);
+                if (_eof) {
+                    _decoder.flush(_chars);
+                    _done = true;
+                } else if (_chars.position() == 0) {
+                    _bytes.compact();
+                    if (_in.read(_bytes) < 0) {
+                        _eof = true;
+                    }
+                    _bytes.flip();
+                }
+            }
+        } catch (IOException excp) {
+            throw error("could not read input");
+        }
+        _chars.flip();
+        return _chars.hasRemaining();
+    }
+
+    /** Initial capacity of the line buffer. */
+    private static final int INITIAL_LINE = 256;
+
+    /** Source of input bytes. */
+    private final ReadableByteChannel _in;
+
+    /** Converts input bytes to characters. */
+    private final CharsetDecoder _decoder;
+
+    /** True iff input lines are split on raw bytes rather than decoded
+     *  characters. */
+    private final boolean _raw;
+
+    /** Bytes read but not yet decoded. */
+    private final ByteBuffer _bytes;
+
+    /** Characters decoded but not yet split into lines. */
+    private final CharBuffer _chars;
+
+    /** The current line is _line[0 .. _length-1]. */
+    private char[] _line;
+
+    /** Length of the current line. */
+    private int _length;
+
+    /** When splitting raw bytes, the current line as bytes is
+     *  _lineBytes[0 .. _length-1], if it is ASCII. */
+    private byte[] _lineBytes;
+
+    /** The bitwise or of the bytes of the current line, which is negative
+     *  iff the line holds bytes outside the ASCII range. */
+    private int _lineBits = -1;
+
+    /** True iff _line holds the current line. */
+    private boolean _charsReady;
+
+    /** True iff the last line ended in '\r', so that a following '\n'
+     *  belongs to it. */
+    private boolean _afterReturn;
+
+    /** True once the channel has reported end of input. */
+    private boolean _eof;
+
+    /** True once all input has been decoded. */
+    private boolean _done;
+}
@@ -0,0 +1,328 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+import static enigma.EnigmaException.error;
+
+/** A destination for processed messages that collects its output in a
+ *  reusable byte buffer and writes it to a channel in large blocks.
+ *
+ *  When the output encoding writes ASCII characters as single bytes of
+ *  the same value (see asciiCompatible), lines of ASCII characters are
+ *  copied straight into the byte buffer, a whole group at a time, with
+ *  no encoder involved.  Lines holding other characters, and all output
+ *  in other encodings, go through a CharsetEncoder.
+ *  @author Arhan Vohra
+ */
+class MessageOutput {
+
+    /** Size in bytes of the output buffer. */
+    static final int BLOCK_SIZE = 1 << 16;
+
+    /** Output written to OUT, encoded in CHARSET. */
+    MessageOutput(WritableByteChannel out, Charset charset) {
+        _out = out;
+        _encoder = charset.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        _ascii = asciiCompatible(charset);
+        _bytes = new byte[BLOCK_SIZE];
+        _byteBuffer = ByteBuffer.wrap(_bytes);
+        _chars = new char[BLOCK_SIZE];
+        _separator = new char[LINE_SEPARATOR.length()];
+        LINE_SEPARATOR.getChars(0, _separator.length, _separator, 0);
+        _asciiSeparator = asciiBytes(LINE_SEPARATOR);
+    }
+
+    /** Write the LEN characters of MSG starting at OFF in groups of
+     *  GROUP, separated by blanks and followed by a line terminator.
+     *  Blanks in MSG are dropped, and the last group may have fewer
+     *  than GROUP characters. */
+    void printGrouped(char[] msg, int off, int len, int group) {
+        if (!_ascii || len + len / group + _asciiSeparator.length
+                       > _bytes.length) {
+            encodeGrouped(msg, off, len, group);
+            return;
+        }
+        if (_count + len + len / group + _asciiSeparator.length
+            > _bytes.length) {
+            drain();
+        }
+        byte[] b = _bytes;
+        int n = _count;
+        int bits = 0;
+        int inGroup = 0;
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (msg[i] == ' ') {
+                i += 1;
+                continue;
+            }
+            int runEnd = i + 1;
+            while (runEnd < end && msg[runEnd] != ' ') {
+                runEnd += 1;
+            }
+            while (i < runEnd) {
+                if (inGroup == group) {
+                    b[n++] = ' ';
+                    inGroup = 0;
+                }
+                int take = Math.min(group - inGroup, runEnd - i);
+                for (int j = 0; j < take; j++) {
+                    char ch = msg[i + j];
+                    bits |= ch;
+                    b[n + j] = (byte) ch;
+                }
+                n += take;
+                i += take;
+                inGroup += take;
+            }
+        }
+        if (bits >= ASCII) {
+            encodeGrouped(msg, off, len, group);
+            return;
+        }
+        _count = n;
+        println();
+    }
+
+    /** Write the LEN ASCII characters of MSG starting at OFF, one per
+     *  byte, as for printGrouped(char[], int, int, int). */
+    void printGrouped(byte[] msg, int off, int len, int group) {
+        if (!_ascii || len + len / group + _asciiSeparator.length
+                       > _bytes.length) {
+            char[] chars = new char[len];
+            for (int i = 0; i < len; i++) {
+                chars[i] = (char) msg[off + i];
+            }
+            encodeGrouped(chars, 0, len, group);
+            return;
+        }
+        if (_count + len + len / group + _asciiSeparator.length
+            > _bytes.length) {
+            drain();
+        }
+        byte[] b = _bytes;
+        int n = _count;
+        int inGroup = 0;
+        int end = off + len;
+        int i = off;
+        while (i < end) {
+            if (msg[i] == ' ') {
+                i += 1;
+                continue;
+            }
+            int runEnd = i + 1;
+            while (runEnd < end && msg[runEnd] != ' ') {
+                runEnd += 1;
+            }
+            while (i < runEnd) {
+                if (inGroup == group) {
+                    b[n++] = ' ';
+                    inGroup = 0;
+                }
+                int take = Math.min(group - inGroup, runEnd - i);
+                System.arraycopy(msg, i, b, n, take);
+                n += take;
+                i += take;
+                inGroup += take;
+            }
+        }
+        _count = n;
+        println();
+    }
+
+    /** Write LINE followed by a line terminator. */
+    void printLine(String line) {
+        int len = line.length();
+        if (_ascii && len + _asciiSeparator.length <= _bytes.length) {
+            if (_count + len > _bytes.length) {
+                drain();
+            }
+            int bits = 0;
+            for (int i = 0; i < len; i++) {
+                char ch = line.charAt(i);
+                bits |= ch;
+                _bytes[_count + i] = (byte) ch;
+            }
+            if (bits < ASCII) {
+                _count += len;
+                println();
+                return;
+            }
+        }
+        for (int i = 0; i < len; i += _chars.length) {
+            int n = Math.min(_chars.length, len - i);
+            line.getChars(i, i + n, _chars, 0);
+            encode(_chars, n);
+        }
+        println();
+    }
+
+    /** Write a line terminator. */
+    void println() {
+        if (_ascii) {
+            if (_count + _asciiSeparator.length > _bytes.length) {
+                drain();
+            }
+            System.arraycopy(_asciiSeparator, 0, _bytes, _count,
+                             _asciiSeparator.length);
+            _count += _asciiSeparator.length;
+        } else {
+            encode(_separator, _separator.length);
+        }
+    }
+
+    /** Write the LEN bytes of BYTES starting at OFF, which are already
+     *  encoded, after everything buffered so far. */
+    void write(byte[] bytes, int off, int len) {
+        drain();
+        write(ByteBuffer.wrap(bytes, off, len));
+    }
+
+    /** Count the bytes I write in METRICS, or in nothing if METRICS is
+     *  null. */
+    void setMetrics(Metrics metrics) {
+        _metrics = metrics;
+    }
+
+    /** Write out everything buffered so far. */
+    void flush() {
+        drain();
+    }
+
+    /** Write out everything buffered so far and close my channel. */
+    void close() {
+        drain();
+        try {
+            _out.close();
+        } catch (IOException excp) {
+            throw error("could not close output");
+        }
+    }
+
+    /** Write MSG as for printGrouped, through the encoder. */
+    private void encodeGrouped(char[] msg, int off, int len, int group) {
+        int written = 0;
+        int n = 0;
+        for (int i = off; i < off + len; i++) {
+            char ch = msg[i];
+            if (ch == ' ') {
+                continue;
+            }
+            if (n + 2 > _chars.length) {
+                encode(_chars, n);
+                n = 0;
+            }
+            if (written > 0 && written % group == 0) {
+                _chars[n++] = ' ';
+            }
+            _chars[n++] = ch;
+            written += 1;
+        }
+        encode(_chars, n);
+        println();
+    }
+
+    /** Encode the first LEN characters of CHARS into the byte buffer,
+     *  writing it out as it fills. */
+    private void encode(char[] chars, int len) {
+        CharBuffer in = CharBuffer.wrap(chars, 0, len);
+        while (true) {
+            _byteBuffer.limit(_bytes.length).position(_count);
+            CoderResult r = _encoder.encode(in, _byteBuffer, false);
+            _count = _byteBuffer.position();
+            if (r.isUnderflow()) {
+                break;
+            }
+            drain();
+        }
+    }
+
+    /** Write the buffered bytes, leaving the buffer empty. */
+    private void drain() {
+        if (_count > 0) {
+            write(ByteBuffer.wrap(_bytes, 0, _count));
+            _count = 0;
+        }
+    }
+
+    /** Write all of BUF to my channel. */
+    private void write(ByteBuffer buf) {
+        if (_metrics != null) {
+            _metrics.output(buf.remaining());
+        }
+        try {
+            while (buf.hasRemaining()) {
+                _out.write(buf);
+            }
+        } catch (IOException excp) {
+            throw error("could not write output");
+        }
+    }
+
+    /** Return true iff text in CHARSET may be handled byte by byte where
+     *  it is ASCII: every ASCII character is the single byte of the same
+     *  value, and every byte below 128 is that ASCII character wherever it
+     *  appears.  This holds for US-ASCII, ISO-8859-1 and UTF-8, which
+     *  are the encodings checked for. */
+    static boolean asciiCompatible(Charset charset) {
+        return charset.equals(StandardCharsets.UTF_8)
+            || charset.equals(StandardCharsets.US_ASCII)
+            || charset.equals(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Return the ASCII characters of S as bytes. */
+    private static byte[] asciiBytes(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    /** Number of ASCII characters. */
+    private static final int ASCII = 128;
+
+    /** Line terminator written after each line. */
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    /** Destination of output bytes. */
+    private final WritableByteChannel _out;
+
+    /** Converts output characters to bytes. */
+    private final CharsetEncoder _encoder;
+
+    /** True iff ASCII characters may be copied to _bytes unencoded. */
+    private final boolean _ascii;
+
+    /** Bytes not yet written are _bytes[0 .. _count-1]. */
+    private final byte[] _bytes;
+
+    /** _bytes, as a buffer for the encoder. */
+    private final ByteBuffer _byteBuffer;
+
+    /** Number of buffered bytes. */
+    private int _count;
+
+    /** Scratch space for characters to be encoded. */
+    private final char[] _chars;
+
+    /** The line terminator, as characters. */
+    private final char[] _separator;
+
+    /** The line terminator, as ASCII bytes. */
+    private final byte[] _asciiSeparator;
+
+    /** Counts the bytes I write, or null if they are not counted. */
+    private Metrics _metrics;
+}
@@ -0,0 +1,193 @@
+package enigma;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import static enigma.EnigmaException.error;
+
+/** Counters and latency histograms for one run, which may be updated
+ *  from several threads at once.  Counters are LongAdders, which spread
+ *  concurrent updates over separate cells rather than contending for one
+ *  word.  Instrumented code holds a Metrics that is null when metrics are
+ *  not wanted, so that with metrics off the only cost is a test of that
+ *  reference, made once per bulk operation rather than once per
+ *  character.
+ *  @author Arhan Vohra
+ */
+class Metrics implements MetricsMXBean {
+
+    /** Name under which I am registered with JMX. */
+    static final String OBJECT_NAME = "enigma:type=Metrics";
+
+    /** Record that N message characters were converted. */
+    void converted(long n) {
+        _converted.add(n);
+    }
+
+    /** Record that applying a settings line took NANOS nanoseconds. */
+    void setUp(long nanos) {
+        _setUps.increment();
+        _setUpNanos.add(nanos);
+    }
+
+    /** Record that reading the configuration took NANOS nanoseconds,
+     *  from its compiled form iff CACHED. */
+    void configRead(long nanos, boolean cached) {
+        _configReadNanos = nanos;
+        _configCached = cached;
+    }
+
+    /** Record that a session (a settings line and its messages) took
+     *  NANOS nanoseconds. */
+    void session(long nanos) {
+        _sessionLatency.record(nanos);
+    }
+
+    /** Record that N bytes of output were written. */
+    void output(long n) {
+        _outputBytes.add(n);
+    }
+
+    @Override
+    public long getCharactersConverted() {
+        return _converted.sum();
+    }
+
+    @Override
+    public long getSetUps() {
+        return _setUps.sum();
+    }
+
+    @Override
+    public long getSetUpNanos() {
+        return _setUpNanos.sum();
+    }
+
+    @Override
+    public long getConfigReadNanos() {
+        return _configReadNanos;
+    }
+
+    @Override
+    public boolean isConfigCached() {
+        return _configCached;
+    }
+
+    @Override
+    public long getSessions() {
+        return _sessionLatency.count();
+    }
+
+    @Override
+    public long getSessionLatencyP50() {
+        return _sessionLatency.percentile(MEDIAN);
+    }
+
+    @Override
+    public long getSessionLatencyP99() {
+        return _sessionLatency.percentile(P99);
+    }
+
+    @Override
+    public long getSessionLatencyMax() {
+        return _sessionLatency.max();
+    }
+
+    @Override
+    public long getOutputBytes() {
+        return _outputBytes.sum();
+    }
+
+    /** Publish me over JMX as OBJECT_NAME, replacing whatever was
+     *  published there before. */
+    void register() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+            _registered = true;
+        } catch (JMException excp) {
+            throw error("could not register metrics: %s",
+                        excp.getMessage());
+        }
+    }
+
+    /** Withdraw me from JMX, if register published me. */
+    void unregister() {
+        if (!_registered) {
+            return;
+        }
+        _registered = false;
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                .unregisterMBean(new ObjectName(OBJECT_NAME));
+        } catch (JMException excp) {
+            /* Already withdrawn by someone else. */
+        }
+    }
+
+    /** Return a summary of my values, one per line. */
+    String summary() {
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("characters converted: %d%n",
+                                 getCharactersConverted()));
+        out.append(String.format("configuration read:   %.3f ms (%s)%n",
+                                 millis(_configReadNanos),
+                                 _configCached ? "cached" : "parsed"));
+        out.append(String.format("settings applied:     %d in %.3f ms%n",
+                                 getSetUps(), millis(getSetUpNanos())));
+        out.append(String.format("sessions:             %d", getSessions()));
+        if (getSessions() > 0) {
+            out.append(String.format(" (latency p50 %.1f us, p99 %.1f us,"
+                                     + " max %.1f us)",
+                                     micros(getSessionLatencyP50()),
+                                     micros(getSessionLatencyP99()),
+                                     micros(getSessionLatencyMax())));
+        }
+        out.append(String.format("%noutput bytes:         %d%n",
+                                 getOutputBytes()));
+        return out.toString();
+    }
+
+    /** Return NANOS in milliseconds. */
+    private static double millis(long nanos) {
+        return (double) nanos / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /** Return NANOS in microseconds. */
+    private static double micros(long nanos) {
+        return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+    }
+
+    /** Fractions of the session latencies reported. */
+    private static final double MEDIAN = 0.5, P99 = 0.99;
+
+    /** Number of message characters converted. */
+    private final LongAdder _converted = new LongAdder();
+
+    /** Number of settings lines applied, and the time taken. */
+    private final LongAdder _setUps = new LongAdder(),
+        _setUpNanos = new LongAdder();
+
+    /** Number of output bytes written. */
+    private final LongAdder _outputBytes = new LongAdder();
+
+    /** Latency of each session. */
+    private final LatencyHistogram _sessionLatency = new LatencyHistogram();
+
+    /** Time taken to read the configuration. */
+    private volatile long _configReadNanos;
+
+    /** True iff the configuration was read from its compiled form. */
+    private volatile boolean _configCached;
+
+    /** True iff I am published over JMX. */
+    private boolean _registered;
+}
@@ -0,0 +1,41 @@
+package enigma;
+
+/** The view of a run's Metrics published over JMX.  (JMX requires this
+ *  interface to be public.)
+ *  @author Arhan Vohra
+ */
+public interface MetricsMXBean {
+
+    /** Return the number of message characters converted. */
+    long getCharactersConverted();
+
+    /** Return the number of settings lines applied to a machine. */
+    long getSetUps();
+
+    /** Return the total time spent applying settings lines, in
+     *  nanoseconds. */
+    long getSetUpNanos();
+
+    /** Return the time spent reading the configuration, in
+     *  nanoseconds. */
+    long getConfigReadNanos();
+
+    /** Return true iff the configuration was read from its compiled
+     *  form. */
+    boolean isConfigCached();
+
+    /** Return the number of sessions whose latency was recorded. */
+    long getSessions();
+
+    /** Return the median session latency, in nanoseconds. */
+    long getSessionLatencyP50();
+
+    /** Return the 99th percentile of session latency, in nanoseconds. */
+    long getSessionLatencyP99();
+
+    /** Return the largest session latency, in nanoseconds. */
+    long getSessionLatencyMax();
+
+    /** Return the number of bytes of output written. */
+    long getOutputBytes();
+}
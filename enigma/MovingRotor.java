@@ -13,8 +13,31 @@ class MovingRotor extends Rotor {
 
     MovingRotor(String name, Permutation perm, String notches) {
         super(name, perm);
-        notchArray = notches.toCharArray();
+        _notchBits = new long[(alphabet().size() + Long.SIZE - 1)
+                              / Long.SIZE];
+        for (char x : notches.toCharArray()) {
+            int k = alphabet().toInt(x);
+            _notchBits[k / Long.SIZE] |= 1L << k;
+        }
         setCanRotate(true);
+        _forwardTable = shiftedTable(perm.forwardTable());
+        _backwardTable = shiftedTable(perm.inverseTable());
+    }
+
+    /** Return a table whose row S (entries S * size() through
+     *  S * size() + size() - 1) holds the mapping WIRING as seen
+     *  through contacts rotated to setting S. */
+    private int[] shiftedTable(int[] wiring) {
+        int n = wiring.length;
+        int[] table = new int[n * n];
+        for (int s = 0; s < n; s++) {
+            for (int p = 0; p < n; p++) {
+                int contact = p + s < n ? p + s : p + s - n;
+                int exit = wiring[contact] - s;
+                table[s * n + p] = exit < 0 ? exit + n : exit;
+            }
+        }
+        return table;
     }
 
     @Override
@@ -23,13 +46,19 @@ class MovingRotor extends Rotor {
     }
 
     @Override
-    boolean atNotch() {
-        for (char x: notchArray) {
-            if (setting() == alphabet().toInt(x)) {
-                return true;
-            }
-        }
-        return false;
+    boolean atNotch(int posn) {
+        return posn >= 0 && posn < alphabet().size()
+            && (_notchBits[posn / Long.SIZE] & 1L << posn) != 0;
+    }
+
+    @Override
+    int[] forwardTable() {
+        return _forwardTable;
+    }
+
+    @Override
+    int[] backwardTable() {
+        return _backwardTable;
     }
 
     /** Return true iff I have a ratchet and can move. */
@@ -40,44 +69,37 @@ class MovingRotor extends Rotor {
     /** Converts @param p forward.
      * @return exit position. */
     int convertForward(int p) {
-        contactEntered = (p + setting())
+        int contactEntered = (p + setting())
                 % (alphabet().size());
-        contactExited = permutation().permute(contactEntered);
-        if (contactExited - setting() < 0) {
-            positionExited = (contactExited - setting()
-                    + alphabet().size()) % alphabet().size();
-        } else {
-            positionExited = (contactExited - setting())
-                    % alphabet().size();
-        }
-        return positionExited;
+        int contactExited = permutation().permute(contactEntered);
+        return exitPosition(contactExited);
     }
 
     /** Converts @param p backward.
      * @return exit position. */
     int convertBackward(int p) {
-        contactEntered = (p + setting())
+        int contactEntered = (p + setting())
                 % (alphabet().size());
-        contactExited = permutation().invert(contactEntered);
-        if (contactExited - setting() < 0) {
-            positionExited = (contactExited - setting()
-                    + alphabet().size()) % alphabet().size();
-        } else {
-            positionExited = (contactExited - setting()) % alphabet().size();
-        }
-        return positionExited;
+        int contactExited = permutation().invert(contactEntered);
+        return exitPosition(contactExited);
     }
 
-    /** Creates a new array for notches. */
-    private char[] notchArray;
+    /** Return the position at which a signal leaving through contact
+     *  CONTACTEXITED exits, at my current setting. */
+    private int exitPosition(int contactExited) {
+        int positionExited = contactExited - setting();
+        return positionExited < 0
+            ? positionExited + alphabet().size() : positionExited;
+    }
 
-    /** Creates a new int for contactExited. */
-    private int contactExited;
+    /** Forward conversions for every setting; see forwardTable(). */
+    private final int[] _forwardTable;
 
-    /** Creates a new int for positionExited. */
-    private int positionExited;
+    /** Backward conversions for every setting; see backwardTable(). */
+    private final int[] _backwardTable;
 
-    /** Creates a new int for contactEntered. */
-    private int contactEntered;
+    /** Bit K % 64 of _notchBits[K / 64] is set iff setting K is a
+     *  notch. */
+    private final long[] _notchBits;
 
 }
@@ -71,4 +71,21 @@ public class MovingRotorTest {
         checkRotor("Rotor I set", UPPER_STRING, NAVALZ_MAP.get("I"));
     }
 
+    @Test
+    public void checkCompiledTables() {
+        setRotor("III", NAVALA, "V");
+        int[] forward = rotor.forwardTable();
+        int[] backward = rotor.backwardTable();
+        int n = rotor.size();
+        for (int s = 0; s < n; s += 1) {
+            rotor.set(s);
+            for (int p = 0; p < n; p += 1) {
+                assertEquals(msg("forward table", "setting %d, %d", s, p),
+                             rotor.convertForward(p), forward[s * n + p]);
+                assertEquals(msg("backward table", "setting %d, %d", s, p),
+                             rotor.convertBackward(p), backward[s * n + p]);
+            }
+        }
+    }
+
 }
@@ -0,0 +1,365 @@
+package enigma;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static enigma.EnigmaException.error;
+
+/** The log-probabilities of the N-letter sequences (N-grams) of a
+ *  language, used to score trial decryptions.  The table is a dense array
+ *  of floats indexed by an N-gram's letters read as the digits of a number
+ *  in base ALPHABET.size(), so scoring a text, given as the alphabet
+ *  indices a Machine works in, costs a few integer operations and one load
+ *  per letter.  N-grams never seen get the log-probability of a hundredth
+ *  of a single occurrence.
+ *
+ *  A table comes from one of three kinds of file.  A file of counts has
+ *  one N-gram per line, followed by blanks and its count, as in
+ *  "TION 13168375"; blank lines are ignored, as are N-grams with
+ *  characters outside the alphabet.  A corpus is running text whose
+ *  N-grams are counted, ignoring characters outside the alphabet (after
+ *  trying their upper-case forms).  A compiled table is the binary form
+ *  written by open, which is memory-mapped and read in place, so that all
+ *  the processes using a table share one copy of it in the page cache.
+ *
+ *  Layout of a compiled table: MAGIC, VERSION, the byte order of the
+ *  entries (LITTLE_ENDIAN or BIG_ENDIAN), the digest of its source as a
+ *  length and bytes, the alphabet as a length and characters, N, the
+ *  number of entries, padding to a multiple of four bytes, and the
+ *  entries as floats.  The entries are written in the native byte order
+ *  of the machine compiling the table, so that scoring need not swap
+ *  bytes; everything else is big-endian.
+ *  @author Arhan Vohra
+ */
+class NgramTable {
+
+    /** Most entries in any table. */
+    static final long MAX_ENTRIES = 1L << 26;
+
+    /** Return the table for texts in ALPHABET in FILE: a compiled table,
+     *  or else a file of counts, or if LENGTH is positive, a corpus whose
+     *  LENGTH-grams are counted.  Counts and corpora are compiled into the
+     *  file named FILE.bin beside FILE, which is used instead for as long
+     *  as FILE (and LENGTH) are unchanged.  Failure to write it is not an
+     *  error. */
+    static NgramTable open(Path file, Alphabet alphabet, int length) {
+        NgramTable table = map(file, alphabet, null);
+        if (table != null) {
+            return table;
+        }
+        byte[] text;
+        try {
+            text = Files.readAllBytes(file);
+        } catch (IOException excp) {
+            throw error("could not read %s: %s", file, excp.getMessage());
+        }
+        byte[] suffix = String.format("%n%d%n%s", length,
+                                      ConfigCache.alphabetString(alphabet))
+            .getBytes(StandardCharsets.UTF_8);
+        byte[] source = Arrays.copyOf(text, text.length + suffix.length);
+        System.arraycopy(suffix, 0, source, text.length, suffix.length);
+        byte[] digest = ConfigCache.digest(source);
+        Path compiled = file.resolveSibling(file.getFileName() + ".bin");
+        table = map(compiled, alphabet, digest);
+        if (table != null) {
+            return table;
+        }
+        String contents = new String(text, StandardCharsets.UTF_8);
+        table = length > 0 ? fromCorpus(contents, alphabet, length)
+            : fromCounts(contents, alphabet);
+        table.save(compiled, digest);
+        NgramTable mapped = map(compiled, alphabet, digest);
+        return mapped != null ? mapped : table;
+    }
+
+    /** Return the table of the counts in TEXT, for texts in ALPHABET. */
+    private static NgramTable fromCounts(String text, Alphabet alphabet) {
+        ArrayList<String> ngrams = new ArrayList<>();
+        ArrayList<Long> counts = new ArrayList<>();
+        for (String line : text.split("\\R")) {
+            String[] fields = line.trim().split("\\s+");
+            if (fields[0].isEmpty()) {
+                continue;
+            }
+            if (fields.length != 2) {
+                throw error("bad n-gram line: %s", line);
+            }
+            ngrams.add(fields[0]);
+            counts.add(count(fields[1]));
+        }
+        if (ngrams.isEmpty()) {
+            throw error("no n-grams given");
+        }
+        int length = ngrams.get(0).length();
+        float[] logProbs = new float[entries(alphabet, length)];
+        double total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        Arrays.fill(logProbs, (float) Math.log10(UNSEEN / total));
+        for (int k = 0; k < ngrams.size(); k++) {
+            String ngram = ngrams.get(k);
+            if (ngram.length() != length) {
+                throw error("n-grams of different lengths");
+            }
+            int index = index(ngram, alphabet);
+            if (index >= 0 && counts.get(k) > 0) {
+                logProbs[index] = (float) Math.log10(counts.get(k) / total);
+            }
+        }
+        return new NgramTable(alphabet, length, FloatBuffer.wrap(logProbs));
+    }
+
+    /** Return the table of the LENGTH-grams of the corpus TEXT, for texts
+     *  in ALPHABET. */
+    private static NgramTable fromCorpus(String text, Alphabet alphabet,
+                                         int length) {
+        int[] counts = new int[entries(alphabet, length)];
+        int span = counts.length / alphabet.size();
+        int index = 0, seen = 0;
+        long total = 0;
+        for (int k = 0; k < text.length(); k++) {
+            char ch = text.charAt(k);
+            if (!alphabet.contains(ch)) {
+                ch = Character.toUpperCase(ch);
+                if (!alphabet.contains(ch)) {
+                    continue;
+                }
+            }
+            index = (index % span) * alphabet.size() + alphabet.toInt(ch);
+            seen += 1;
+            if (seen >= length && counts[index] < Integer.MAX_VALUE) {
+                counts[index] += 1;
+                total += 1;
+            }
+        }
+        if (total == 0) {
+            throw error("corpus has no %d-grams", length);
+        }
+        float[] logProbs = new float[counts.length];
+        float unseen = (float) Math.log10(UNSEEN / total);
+        for (int i = 0; i < counts.length; i++) {
+            logProbs[i] = counts[i] == 0 ? unseen
+                : (float) Math.log10((double) counts[i] / total);
+        }
+        return new NgramTable(alphabet, length, FloatBuffer.wrap(logProbs));
+    }
+
+    /** Return the compiled table in FILE, mapped, or null if FILE does not
+     *  exist, is not a compiled table or is damaged, or DIGEST is not null
+     *  and FILE was not compiled from a source whose digest is DIGEST.  It
+     *  is an error for the table to be for an alphabet other than
+     *  ALPHABET. */
+    private static NgramTable map(Path file, Alphabet alphabet,
+                                  byte[] digest) {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        try (FileChannel in = FileChannel.open(file)) {
+            MappedByteBuffer buf =
+                in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            return read(buf, alphabet, digest);
+        } catch (IOException | BufferUnderflowException
+                 | IllegalArgumentException excp) {
+            return null;
+        }
+    }
+
+    /** Return the table in BUF, reading its entries in place, or null if
+     *  BUF is not a compiled table or (for non-null DIGEST) was not
+     *  compiled from a source whose digest is DIGEST.  Throws an exception
+     *  if BUF is damaged. */
+    private static NgramTable read(ByteBuffer buf, Alphabet alphabet,
+                                   byte[] digest) {
+        if (buf.remaining() < 3 * Integer.BYTES
+            || buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+            return null;
+        }
+        ByteOrder order;
+        switch (buf.getInt()) {
+        case LITTLE_ENDIAN:
+            order = ByteOrder.LITTLE_ENDIAN;
+            break;
+        case BIG_ENDIAN:
+            order = ByteOrder.BIG_ENDIAN;
+            break;
+        default:
+            throw new IllegalArgumentException("bad byte order");
+        }
+        byte[] recorded = new byte[ConfigCache.count(buf)];
+        buf.get(recorded);
+        if (digest != null && !Arrays.equals(recorded, digest)) {
+            return null;
+        }
+        if (!ConfigCache.getString(buf)
+            .equals(ConfigCache.alphabetString(alphabet))) {
+            throw error("n-gram table is for another alphabet");
+        }
+        int length = buf.getInt();
+        if (length < 1
+            || Math.pow(alphabet.size(), length) > MAX_ENTRIES
+            || buf.getInt() != entries(alphabet, length)) {
+            throw new IllegalArgumentException("bad table size");
+        }
+        buf.position(padded(buf.position()));
+        if (buf.remaining() != Float.BYTES * entries(alphabet, length)) {
+            throw new IllegalArgumentException("bad table size");
+        }
+        return new NgramTable(alphabet, length,
+                              buf.slice().order(order).asFloatBuffer());
+    }
+
+    /** A table of LENGTH-grams of texts in ALPHABET, whose entries are
+     *  LOGPROBS. */
+    private NgramTable(Alphabet alphabet, int length, FloatBuffer logProbs) {
+        _alphabet = alphabet;
+        _size = alphabet.size();
+        _length = length;
+        _span = entries(alphabet, length) / _size;
+        _logProbs = logProbs;
+    }
+
+    /** Write me, compiled from a source whose digest is DIGEST, to
+     *  FILE. */
+    private void save(Path file, byte[] digest) {
+        String alphabet = ConfigCache.alphabetString(_alphabet);
+        int entries = _logProbs.capacity();
+        int header = padded(7 * Integer.BYTES + digest.length
+                            + Character.BYTES * alphabet.length());
+        ByteBuffer buf =
+            ByteBuffer.allocate(header + Float.BYTES * entries);
+        ByteOrder order = ByteOrder.nativeOrder();
+        buf.putInt(MAGIC).putInt(VERSION);
+        buf.putInt(order == ByteOrder.LITTLE_ENDIAN
+                   ? LITTLE_ENDIAN : BIG_ENDIAN);
+        buf.putInt(digest.length).put(digest);
+        ConfigCache.putString(buf, alphabet);
+        buf.putInt(_length).putInt(entries);
+        buf.position(header);
+        buf.slice().order(order).asFloatBuffer()
+            .put(_logProbs.duplicate().rewind());
+        buf.rewind();
+        ConfigCache.writeAtomically(file, buf);
+    }
+
+    /** Return the number of letters in each of my N-grams. */
+    int length() {
+        return _length;
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the log-probability of the N-gram NGRAM. */
+    double logProbability(String ngram) {
+        int index = ngram.length() == _length ? index(ngram, _alphabet) : -1;
+        if (index < 0) {
+            throw error("'%s' is not one of my n-grams", ngram);
+        }
+        return _logProbs.get(index);
+    }
+
+    /** Return the sum of the log-probabilities of the N-grams of the
+     *  letters TEXT[0 .. LEN-1], given as alphabet indices. */
+    double score(int[] text, int len) {
+        if (len < _length) {
+            return 0;
+        }
+        int prefix = 0;
+        for (int k = 0; k < _length - 1; k++) {
+            prefix = prefix * _size + text[k];
+        }
+        FloatBuffer logProbs = _logProbs;
+        double total = 0;
+        for (int k = _length - 1; k < len; k++) {
+            int index = prefix * _size + text[k];
+            total += logProbs.get(index);
+            prefix = index - text[k - _length + 1] * _span;
+        }
+        return total;
+    }
+
+    /** Return the number of LENGTH-grams of ALPHABET. */
+    private static int entries(Alphabet alphabet, int length) {
+        long entries = 1;
+        for (int k = 0; k < length; k++) {
+            entries *= alphabet.size();
+            if (entries > MAX_ENTRIES) {
+                throw error("%d-gram table too large", length);
+            }
+        }
+        return (int) entries;
+    }
+
+    /** Return the index of NGRAM in a table for ALPHABET, or -1 if it has
+     *  characters outside ALPHABET. */
+    private static int index(String ngram, Alphabet alphabet) {
+        int index = 0;
+        for (int k = 0; k < ngram.length(); k++) {
+            char ch = ngram.charAt(k);
+            if (!alphabet.contains(ch)) {
+                return -1;
+            }
+            index = index * alphabet.size() + alphabet.toInt(ch);
+        }
+        return index;
+    }
+
+    /** Return the count COUNT, a non-negative number. */
+    private static long count(String count) {
+        try {
+            long result = Long.parseLong(count);
+            if (result >= 0) {
+                return result;
+            }
+        } catch (NumberFormatException excp) {
+            /* Fall through. */
+        }
+        throw error("bad n-gram count: %s", count);
+    }
+
+    /** Return POSITION rounded up to a multiple of the size of a float. */
+    private static int padded(int position) {
+        return (position + Float.BYTES - 1) / Float.BYTES * Float.BYTES;
+    }
+
+    /** First four bytes of a compiled table: "NGRM". */
+    private static final int MAGIC = 0x4e47524d;
+
+    /** Version of the layout of compiled tables. */
+    private static final int VERSION = 2;
+
+    /** Byte orders of the entries of a compiled table. */
+    private static final int LITTLE_ENDIAN = 1, BIG_ENDIAN = 2;
+
+    /** Number of occurrences credited to unseen N-grams. */
+    private static final double UNSEEN = 0.01;
+
+    /** Alphabet of the texts scored. */
+    private final Alphabet _alphabet;
+
+    /** Size of _alphabet. */
+    private final int _size;
+
+    /** Number of letters in each N-gram. */
+    private final int _length;
+
+    /** Number of (N-1)-grams. */
+    private final int _span;
+
+    /** Log-probability (base 10) of each N-gram, by index: a mapped
+     *  compiled table, or an array if that could not be written. */
+    private final FloatBuffer _logProbs;
+}
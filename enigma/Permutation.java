@@ -15,42 +15,75 @@ class Permutation {
      *  Whitespace is ignored. */
     Permutation(String cycles, Alphabet alphabet) {
         originalAlphabet = alphabet;
-        alphabetArray = originalAlphabet.getAlphabet().toCharArray();
-        _cycles = cycles.split(" ");
-        try {
-            for (char x : alphabetArray) {
-                for (String y : _cycles) {
-                    for (int z = 1; z < y.length() - 1; z++) {
-                        char permuter = alphabetArray[
-                                originalAlphabet.toInt(x)];
-                        if ((permuter == y.charAt(z))
-                                && (z != y.length() - 2)) {
-                            char nextChar = y.charAt(z + 1);
-                            alphabetArray[
-                                    originalAlphabet.toInt(x)] = nextChar;
-                            break;
-                        } else if (permuter == y.charAt(z)) {
-                            char first = y.charAt(1);
-                            alphabetArray[originalAlphabet.toInt(x)] = first;
-                            break;
-                        }
-                    }
+        _cycles = cycles;
+        _forward = new int[alphabet.size()];
+        _inverse = new int[alphabet.size()];
+        for (int i = 0; i < _forward.length; i++) {
+            _forward[i] = -1;
+        }
+
+        int start = -1;
+        for (int i = 0; i < cycles.length(); i++) {
+            char c = cycles.charAt(i);
+            if (c == '(') {
+                if (start >= 0) {
+                    throw error("Bad permutation format.");
+                }
+                start = i + 1;
+            } else if (c == ')') {
+                if (start < 0) {
+                    throw error("Bad permutation format.");
                 }
+                addCycle(cycles.substring(start, i));
+                start = -1;
+            } else if (start < 0 && !Character.isWhitespace(c)) {
+                throw error("Bad permutation format.");
             }
-            String arrayAsString = new String(alphabetArray);
-            _alphabet = new Alphabet(arrayAsString);
-        } catch (EnigmaException excp) {
+        }
+        if (start >= 0) {
             throw error("Bad permutation format.");
         }
+
+        for (int i = 0; i < _forward.length; i++) {
+            if (_forward[i] < 0) {
+                _forward[i] = i;
+            }
+            _inverse[_forward[i]] = i;
+        }
     }
 
     /** Add the cycle c0->c1->...->cm->c0 to the permutation, where CYCLE is
      *  c0c1...cm. */
     private void addCycle(String cycle) {
+        if (cycle.length() == 0) {
+            throw error("Bad permutation format.");
+        }
+        int first = -1;
+        int prev = -1;
+        for (int i = 0; i < cycle.length(); i++) {
+            char c = cycle.charAt(i);
+            if (!alphabet().contains(c)) {
+                throw error("character '%c' not in alphabet", c);
+            }
+            int k = alphabet().toInt(c);
+            if (_forward[k] >= 0 || k == first || k == prev) {
+                throw error("character '%c' appears twice in cycles", c);
+            }
+            if (first < 0) {
+                first = k;
+            } else {
+                _forward[prev] = k;
+            }
+            prev = k;
+        }
+        _forward[prev] = first;
     }
 
     /** Return the value of P modulo the size of this permutation. */
     final int wrap(int p) {
+        if (p >= 0 && p < _forward.length) {
+            return p;
+        }
         int r = p % size();
         if (r < 0) {
             r += size();
@@ -60,37 +93,30 @@ class Permutation {
 
     /** Returns the size of the alphabet I permute. */
     int size() {
-        return _alphabet.size();
+        return _forward.length;
     }
 
     /** Return the result of applying this permutation to P modulo the
      *  alphabet size. */
     int permute(int p) {
-        return alphabet().toInt(alphabetArray[wrap(p)]);
+        return _forward[wrap(p)];
     }
 
     /** Return the result of applying the inverse of this permutation
      *  to C modulo the alphabet size. */
     int invert(int c) {
-        int cMod = wrap(c);
-        for (int i = 0; i < alphabet().size(); i++) {
-            if (permute(i) == cMod) {
-                return i;
-            }
-        }
-        return 0;
+        return _inverse[wrap(c)];
     }
 
     /** Return the result of applying this permutation to the index of P
      *  in ALPHABET, and converting the result to a character of ALPHABET. */
     char permute(char p) {
-        return alphabetArray[alphabet().toInt(p)];
+        return alphabet().toChar(_forward[alphabet().toInt(p)]);
     }
 
     /** Return the result of applying the inverse of this permutation to C. */
     char invert(char c) {
-        /** Returns the inverse character translation of C. */
-        return alphabet().getAlphabet().charAt(_alphabet.toInt(c));
+        return alphabet().toChar(_inverse[alphabet().toInt(c)]);
     }
 
     /** Return the alphabet used to initialize this Permutation. */
@@ -101,31 +127,45 @@ class Permutation {
     /** Return true iff this permutation is a derangement (i.e., a
      *  permutation for which no value maps to itself). */
     boolean derangement() {
-        for (int i = 0; i < _alphabet.size(); i++) {
-            if (_alphabet.toChar(i) == alphabet().toChar(i)) {
+        for (int i = 0; i < _forward.length; i++) {
+            if (_forward[i] == i) {
                 return false;
             }
         }
         return true;
     }
 
+    /** Return the table of this permutation, whose entry P is permute(P).
+     *  The result is shared and must not be modified. */
+    int[] forwardTable() {
+        return _forward;
+    }
+
+    /** Return the table of the inverse of this permutation, whose entry C
+     *  is invert(C).  The result is shared and must not be modified. */
+    int[] inverseTable() {
+        return _inverse;
+    }
+
     /** @return the cycle string, if needed. */
     String getCycles() {
-        String holder = "";
-        for (String cycle: _cycles) {
-            holder += cycle;
+        StringBuilder holder = new StringBuilder();
+        for (int i = 0; i < _cycles.length(); i++) {
+            if (_cycles.charAt(i) != ' ') {
+                holder.append(_cycles.charAt(i));
+            }
         }
-        return holder;
+        return holder.toString();
     }
 
-    /** Alphabet of this permutation. */
-    private Alphabet _alphabet;
+    /** Cycles this permutation was built from. */
+    private String _cycles;
 
-    /** Cycles permutation container. */
-    private String[] _cycles;
+    /** Index I maps to _forward[I]. */
+    private int[] _forward;
 
-    /** Creates an array out of the alphabet. */
-    private char[] alphabetArray;
+    /** Index I is mapped to by _inverse[I]; the inverse of _forward. */
+    private int[] _inverse;
 
     /** Alphabet representing the original permutation. */
     private Alphabet originalAlphabet;
@@ -110,5 +110,39 @@ public class PermutationTest {
         assertEquals(notReal.size(), 6);
     }
 
+    @Test
+    public void adjacentCyclesTest() {
+        perm = new Permutation(NAVALA.get("V"), UPPER);
+        checkPerm("Rotor V", UPPER_STRING, NAVALA_MAP.get("V"));
+    }
+
+    @Test
+    public void allNavalTest() {
+        for (String name : NAVALA_MAP.keySet()) {
+            perm = new Permutation(NAVALA.get(name), UPPER);
+            checkPerm(name, UPPER_STRING, NAVALA_MAP.get(name));
+        }
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void unclosedCycleTest() {
+        new Permutation("(AB) (CD", UPPER);
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void repeatedCharacterTest() {
+        new Permutation("(ABC) (DA)", UPPER);
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void adjacentRepeatTest() {
+        new Permutation("(ABB)", new Alphabet("ABCD"));
+    }
+
+    @Test(expected = EnigmaException.class)
+    public void foreignCharacterTest() {
+        new Permutation("(AB1)", UPPER);
+    }
+
 
 }
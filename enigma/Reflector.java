@@ -14,6 +14,11 @@ class Reflector extends FixedRotor {
         set(0);
     }
 
+    @Override
+    boolean reflecting() {
+        return true;
+    }
+
     @Override
     void set(int posn) {
         if (posn != 0) {
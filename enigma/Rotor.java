@@ -72,9 +72,28 @@ class Rotor {
     /** Returns true iff I am positioned to allow the rotor to my left
      *  to advance. */
     boolean atNotch() {
+        return atNotch(setting());
+    }
+
+    /** Returns true iff setting POSN is one of my notches. */
+    boolean atNotch(int posn) {
         return false;
     }
 
+    /** Return my forward conversions as a table, for use by a compiled
+     *  machine.  Entry P is convertForward(P); rotating rotors override
+     *  this with one such row of size() entries per setting.  The result
+     *  is shared and must not be modified. */
+    int[] forwardTable() {
+        return _permutation.forwardTable();
+    }
+
+    /** Return my backward conversions as a table laid out as for
+     *  forwardTable().  The result is shared and must not be modified. */
+    int[] backwardTable() {
+        return _permutation.inverseTable();
+    }
+
     /** Advance me one position, if possible. By default, does nothing. */
     void advance() {
     }
@@ -0,0 +1,26 @@
+package enigma;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/** A Java Flight Recorder event recording a call of Machine.insertRotors
+ *  or Machine.setRotors.  Costs nothing unless a recording enables it.
+ *  @author Arhan Vohra
+ */
+@Name("enigma.Rotors")
+@Label("Enigma Rotors")
+@Category("Enigma")
+@Description("Rotors inserted into a machine, or their settings changed")
+class RotorEvent extends Event {
+
+    /** The method called: "insertRotors" or "setRotors". */
+    @Label("Operation")
+    String operation;
+
+    /** The rotor names, separated by blanks, or the setting. */
+    @Label("Argument")
+    String argument;
+}
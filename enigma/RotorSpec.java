@@ -0,0 +1,117 @@
+package enigma;
+
+/** The unchanging description of a rotor: its name, alphabet, wiring
+ *  (compiled into tables that account for every setting) and notches.
+ *  A RotorSpec holds no setting and is never modified after it is made,
+ *  so one can be shared by any number of machines on any number of
+ *  threads; each machine keeps the settings of its rotors itself.
+ *  @author Arhan Vohra
+ */
+final class RotorSpec {
+
+    /** The description of ROTOR, ignoring its current setting. */
+    RotorSpec(Rotor rotor) {
+        _name = rotor.name();
+        _alphabet = rotor.alphabet();
+        _rotates = rotor.rotates();
+        _reflecting = rotor.reflecting();
+        _forward = rotor.forwardTable();
+        _backward = rotor.backwardTable();
+        _notches = new boolean[_alphabet.size()];
+        for (int k = 0; k < _notches.length; k++) {
+            _notches[k] = rotor.atNotch(k);
+        }
+    }
+
+    /** A rotor named NAME with alphabet ALPHABET that moves iff ROTATES
+     *  and reflects iff REFLECTING, whose setting K is a notch iff
+     *  NOTCHES[K], and whose conversion tables are FORWARD and BACKWARD
+     *  (see Rotor.forwardTable()).  The arrays become mine and must not
+     *  be modified afterward. */
+    RotorSpec(String name, Alphabet alphabet, boolean rotates,
+              boolean reflecting, boolean[] notches, int[] forward,
+              int[] backward) {
+        _name = name;
+        _alphabet = alphabet;
+        _rotates = rotates;
+        _reflecting = reflecting;
+        _notches = notches;
+        _forward = forward;
+        _backward = backward;
+    }
+
+    /** Return my name. */
+    String name() {
+        return _name;
+    }
+
+    /** Return my alphabet. */
+    Alphabet alphabet() {
+        return _alphabet;
+    }
+
+    /** Return the size of my alphabet. */
+    int size() {
+        return _alphabet.size();
+    }
+
+    /** Return true iff I have a ratchet and can move. */
+    boolean rotates() {
+        return _rotates;
+    }
+
+    /** Return true iff I reflect. */
+    boolean reflecting() {
+        return _reflecting;
+    }
+
+    /** Returns true iff setting POSN is one of my notches. */
+    boolean atNotch(int posn) {
+        return _notches[posn];
+    }
+
+    /** Return a table whose entry K is true iff setting K is one of my
+     *  notches.  The result is shared and must not be modified. */
+    boolean[] notches() {
+        return _notches;
+    }
+
+    /** Return my forward conversions as a table (see
+     *  Rotor.forwardTable()).  The result is shared and must not be
+     *  modified. */
+    int[] forwardTable() {
+        return _forward;
+    }
+
+    /** Return my backward conversions as a table laid out as for
+     *  forwardTable().  The result is shared and must not be modified. */
+    int[] backwardTable() {
+        return _backward;
+    }
+
+    @Override
+    public String toString() {
+        return "Rotor " + _name;
+    }
+
+    /** My name. */
+    private final String _name;
+
+    /** My alphabet. */
+    private final Alphabet _alphabet;
+
+    /** True iff I can move. */
+    private final boolean _rotates;
+
+    /** True iff I reflect. */
+    private final boolean _reflecting;
+
+    /** _notches[K] is true iff setting K is a notch. */
+    private final boolean[] _notches;
+
+    /** Forward conversion table. */
+    private final int[] _forward;
+
+    /** Backward conversion table. */
+    private final int[] _backward;
+}
@@ -0,0 +1,266 @@
+package enigma;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import static enigma.EnigmaException.error;
+
+/** The scrambler (the rotors of a machine, without its plugboard) at each
+ *  of a run of consecutive positions, in the form used by the key
+ *  searches.  At each position it keeps the fast rotor's row and a table
+ *  for the rest of the rotors, which changes only when they move, so that
+ *  taking a letter through the scrambler costs three table lookups
+ *  whatever the number of rotors.  The rotor settings at each position are
+ *  found by stepping a Machine, so the searches step exactly as the
+ *  machine does.  Not safe for use by several threads at once.
+ *  @author Arhan Vohra
+ */
+class Scrambler {
+
+    /** A scrambler for the machines described by SPEC, covering LENGTH
+     *  positions. */
+    Scrambler(MachineSpec spec, int length) {
+        _spec = spec;
+        _size = spec.alphabet().size();
+        _last = spec.numRotors() - 1;
+        _rotates = movingSlots(spec);
+        _rows = new int[length];
+        _inner = new int[length][];
+        _innerInverse = new int[length][];
+    }
+
+    /** Return an array whose Ith element is true iff slot I of the
+     *  machines described by SPEC holds a moving rotor. */
+    static boolean[] movingSlots(MachineSpec spec) {
+        boolean[] rotates = new boolean[spec.numRotors()];
+        for (int i = spec.numRotors() - spec.numPawls();
+             i < rotates.length; i++) {
+            rotates[i] = true;
+        }
+        return rotates;
+    }
+
+    /** Return every order of distinct rotors of SPEC that fits its
+     *  machines: a reflector in slot 0, non-moving rotors in the slots
+     *  that do not rotate, and moving rotors in the others. */
+    static List<RotorSpec[]> orders(MachineSpec spec) {
+        ArrayList<RotorSpec[]> orders = new ArrayList<>();
+        addOrders(spec, movingSlots(spec), new RotorSpec[spec.numRotors()],
+                  0, orders);
+        if (orders.isEmpty()) {
+            throw error("no order of the rotors fits the machine");
+        }
+        return orders;
+    }
+
+    /** Add to ORDERS every order of distinct rotors of SPEC that
+     *  completes ORDER, whose first SLOT slots are filled, where ROTATES
+     *  tells which slots hold moving rotors. */
+    private static void addOrders(MachineSpec spec, boolean[] rotates,
+                                  RotorSpec[] order, int slot,
+                                  List<RotorSpec[]> orders) {
+        if (slot == order.length) {
+            orders.add(order.clone());
+            return;
+        }
+        candidates:
+        for (RotorSpec r : spec.rotors()) {
+            if (r.reflecting() != (slot == 0)
+                || r.rotates() != rotates[slot]) {
+                continue;
+            }
+            for (int i = 0; i < slot; i++) {
+                if (order[i] == r || order[i].name().equals(r.name())) {
+                    continue candidates;
+                }
+            }
+            order[slot] = r;
+            addOrders(spec, rotates, order, slot + 1, orders);
+        }
+    }
+
+    /** Return the settings line, as in a message file, for the rotors
+     *  ORDER at START (indexed by slot; slot 0 is ignored) and a plugboard
+     *  swapping the pairs in CYCLES. */
+    static String settingsLine(RotorSpec[] order, int[] start,
+                               String cycles, Alphabet alphabet) {
+        StringBuilder line = new StringBuilder("*");
+        for (RotorSpec r : order) {
+            line.append(' ').append(r.name());
+        }
+        line.append(' ');
+        for (int i = 1; i < order.length; i++) {
+            line.append(alphabet.toChar(start[i]));
+        }
+        if (!cycles.isEmpty()) {
+            line.append(' ').append(cycles);
+        }
+        return line.toString();
+    }
+
+    /** Return the swapped pairs of the plugboard PARTNER, in which each
+     *  letter's partner is itself or -1 if it has none, in cycle
+     *  notation. */
+    static String cycles(int[] partner, Alphabet alphabet) {
+        StringBuilder cycles = new StringBuilder();
+        for (int u = 0; u < partner.length; u++) {
+            int y = partner[u];
+            if (y > u) {
+                cycles.append(cycles.length() == 0 ? "(" : " (")
+                    .append(alphabet.toChar(u))
+                    .append(alphabet.toChar(y)).append(')');
+            }
+        }
+        return cycles.toString();
+    }
+
+    /** Advance M by N steps. */
+    static void advance(Machine M, int n) {
+        if (n > JUMP_THRESHOLD) {
+            M.jumpAhead(n);
+        } else {
+            for (int k = 0; k < n; k++) {
+                M.advanceMachine();
+            }
+        }
+    }
+
+    /** Use the rotors ORDER, indexed by slot. */
+    void useOrder(RotorSpec[] order) {
+        String[] names = new String[order.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = order[i].name();
+        }
+        _machine = _spec.newMachine();
+        _machine.insertRotors(names);
+        _fastForward = order[_last].forwardTable();
+        _fastBackward = order[_last].backwardTable();
+        newStart();
+    }
+
+    /** Forget the tables of the rotors other than the fast one.  They are
+     *  kept by the settings of those rotors, which are few for any one
+     *  starting setting of the slower rotors, so callers should call this
+     *  whenever that setting changes. */
+    void newStart() {
+        _innerTables.clear();
+        _innerKeyTables = null;
+    }
+
+    /** Set the rotors to START (as for Machine.restore) and record the
+     *  scrambler at the positions reached by each of my positions' worth
+     *  of steps after the first OFFSET steps. */
+    void setUp(int[] start, int offset) {
+        _machine.restore(start);
+        advance(_machine, offset);
+        for (int k = 0; k < _rows.length; k++) {
+            _machine.advanceMachine();
+            _rows[k] = _rotates[_last]
+                ? _machine.setting(_last) * _size : 0;
+            long key = 0;
+            for (int i = 1; i < _last; i++) {
+                key = key * _size + _machine.setting(i);
+            }
+            if (key != _innerKey || _innerKeyTables == null) {
+                int[][] tables = _innerTables.get(key);
+                if (tables == null) {
+                    tables = innerTables();
+                    _innerTables.put(key, tables);
+                }
+                _innerKey = key;
+                _innerKeyTables = tables;
+            }
+            _inner[k] = _innerKeyTables[0];
+            _innerInverse[k] = _innerKeyTables[1];
+        }
+    }
+
+    /** Return the result of taking X through the scrambler at position
+     *  K. */
+    int convert(int k, int x) {
+        int row = _rows[k];
+        return _fastBackward[row + _inner[k][_fastForward[row + x]]];
+    }
+
+    /** Return the letter that the scrambler at position K takes to X.
+     *  This is convert(K, X) unless the reflector is not an involution. */
+    int invert(int k, int x) {
+        int row = _rows[k];
+        return _fastBackward[row + _innerInverse[k][_fastForward[row + x]]];
+    }
+
+    /** Return the number of positions I cover. */
+    int length() {
+        return _rows.length;
+    }
+
+    /** Return the machine stepped to find rotor settings. */
+    Machine machine() {
+        return _machine;
+    }
+
+    /** Return the table taking each letter through the rotors of _machine
+     *  in slots _last-1 down to 1, the reflector, and back through slots 1
+     *  to _last-1, at their current settings, together with its
+     *  inverse. */
+    private int[][] innerTables() {
+        int[] table = new int[_size];
+        int[] inverse = new int[_size];
+        int[] base = new int[_last];
+        for (int i = 0; i < _last; i++) {
+            base[i] = _rotates[i] ? _machine.setting(i) * _size : 0;
+        }
+        for (int x = 0; x < _size; x++) {
+            int y = x;
+            for (int i = _last - 1; i > 0; i--) {
+                y = _machine.rotor(i).forwardTable()[base[i] + y];
+            }
+            for (int i = 0; i < _last; i++) {
+                y = _machine.rotor(i).backwardTable()[base[i] + y];
+            }
+            table[x] = y;
+            inverse[y] = x;
+        }
+        return new int[][] { table, inverse };
+    }
+
+    /** Largest offset reached by stepping rather than with
+     *  Machine.jumpAhead. */
+    private static final int JUMP_THRESHOLD = 64;
+
+    /** Description of the machines scrambled. */
+    private final MachineSpec _spec;
+
+    /** Size of their alphabet. */
+    private final int _size;
+
+    /** Slot of the fast rotor. */
+    private final int _last;
+
+    /** _rotates[I] is true iff slot I holds a moving rotor. */
+    private final boolean[] _rotates;
+
+    /** The machine stepped to find rotor settings. */
+    private Machine _machine;
+
+    /** Wiring tables of the fast rotor of the current order. */
+    private int[] _fastForward, _fastBackward;
+
+    /** Tables of the rotors other than the fast one, and their inverses,
+     *  by their settings, since newStart. */
+    private final HashMap<Long, int[][]> _innerTables = new HashMap<>();
+
+    /** The settings of the rotors other than the fast one last looked up
+     *  in _innerTables. */
+    private long _innerKey;
+
+    /** The tables found for _innerKey, or null. */
+    private int[][] _innerKeyTables;
+
+    /** Offset of the fast rotor's row at each position. */
+    private final int[] _rows;
+
+    /** Table of the other rotors at each position, and its inverse. */
+    private final int[][] _inner, _innerInverse;
+}
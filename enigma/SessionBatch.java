@@ -0,0 +1,424 @@
+package enigma;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static enigma.EnigmaException.error;
+
+/** Converts the sessions of an input (each a settings line and the
+ *  message lines that follow it) independently on a pool of threads,
+ *  each with its own machine, and writes their results in the original
+ *  order.  Sessions are set up in order by the caller, since a session
+ *  may inherit its plugboard from the one before it.  At most a fixed
+ *  number of sessions are held at once, so memory stays bounded however
+ *  long the input is; a session that is not yet finished holds back the
+ *  output of those after it.
+ *
+ *  Given a Lockstep, consecutive sessions that use the same rotors are
+ *  gathered into groups that are converted together, in lockstep, as a
+ *  single task.
+ *  @author Arhan Vohra
+ */
+class SessionBatch {
+
+    /** A batch converting sessions on THREADS threads and writing
+     *  messages in groups of GROUP characters, encoded in CHARSET, to
+     *  OUTPUT. */
+    SessionBatch(int threads, MessageOutput output, int group,
+                 Charset charset) {
+        this(threads, output, group, charset, null);
+    }
+
+    /** A batch as for SessionBatch(THREADS, OUTPUT, GROUP, CHARSET) that
+     *  converts groups of consecutive sessions using the same rotors
+     *  together with LOCKSTEP, unless it is null. */
+    SessionBatch(int threads, MessageOutput output, int group,
+                 Charset charset, Lockstep lockstep) {
+        _pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "enigma-session");
+            t.setDaemon(true);
+            return t;
+        });
+        _output = output;
+        _group = group;
+        _charset = charset;
+        _window = threads * SESSIONS_PER_THREAD;
+        _lockstep = lockstep;
+    }
+
+    /** Begin a new session whose messages are converted by MACHINE, which
+     *  has been set up for it and is not used by anything else.  EVENT,
+     *  already begun, or null if not recording, receives the times taken
+     *  to convert and print the session, and is committed once they are
+     *  done. */
+    void start(Machine machine, SessionEvent event) {
+        _machine = machine;
+        _event = event;
+        _text = new char[INITIAL_TEXT];
+        _length = 0;
+        _lineEnds = new int[INITIAL_LINES];
+        _lineBlanks = new int[INITIAL_LINES];
+        _lines = 0;
+    }
+
+    /** Add the first LEN characters of LINE as the next message line of
+     *  the current session, preceded by BLANKLINES empty lines. */
+    void addLine(char[] line, int len, int blankLines) {
+        if (_length + len > _text.length) {
+            _text = Arrays.copyOf(_text, Math.max(_length + len,
+                                                  2 * _text.length));
+        }
+        if (_lines == _lineEnds.length) {
+            _lineEnds = Arrays.copyOf(_lineEnds, 2 * _lines);
+            _lineBlanks = Arrays.copyOf(_lineBlanks, 2 * _lines);
+        }
+        System.arraycopy(line, 0, _text, _length, len);
+        _length += len;
+        _lineEnds[_lines] = _length;
+        _lineBlanks[_lines] = blankLines;
+        _lines += 1;
+    }
+
+    /** Submit the current session for conversion, first writing out the
+     *  results of earlier sessions if too many are outstanding.  When
+     *  converting in lockstep, the session instead joins the current
+     *  group, which is submitted first if the session cannot join it. */
+    void end() {
+        if (_machine == null) {
+            return;
+        }
+        Session session = new Session(_machine, _event, _text, _lineEnds,
+                                      _lineBlanks, _lines);
+        _machine = null;
+        _event = null;
+        if (_lockstep == null) {
+            submit(() -> convert(session));
+            return;
+        }
+        if (!_sessions.isEmpty()
+            && (_sessions.size() == LOCKSTEP_GROUP
+                || !session._machine.sameRotors(_sessions.get(0)._machine))) {
+            submitGroup();
+        }
+        _sessions.add(session);
+    }
+
+    /** Write out the results of all submitted sessions, and stop the
+     *  threads.  If any session failed, reports its error after writing
+     *  the output of the sessions before it and the lines it converted
+     *  before failing, and writes nothing more. */
+    void finish() {
+        try {
+            if (!_sessions.isEmpty()) {
+                submitGroup();
+            }
+            while (!_pending.isEmpty()) {
+                writeNext();
+            }
+        } finally {
+            _pool.shutdownNow();
+        }
+    }
+
+    /** Submit TASK, first writing out the results of earlier tasks if too
+     *  many are outstanding. */
+    private void submit(Callable<Result> task) {
+        while (_pending.size() >= _window) {
+            writeNext();
+        }
+        _pending.add(_pool.submit(task));
+    }
+
+    /** Submit the sessions gathered for lockstep conversion as one task,
+     *  and start a new group. */
+    private void submitGroup() {
+        Session[] group = _sessions.toArray(new Session[0]);
+        _sessions.clear();
+        if (group.length == 1) {
+            submit(() -> convert(group[0]));
+        } else {
+            submit(() -> convert(group));
+        }
+    }
+
+    /** Wait for the earliest outstanding session and write its output,
+     *  reporting its error, if any.  A session that failed without an
+     *  EnigmaException writes nothing, and its exception is rethrown. */
+    private void writeNext() {
+        Result result;
+        try {
+            result = _pending.remove().get();
+        } catch (ExecutionException excp) {
+            _pending.clear();
+            _pool.shutdownNow();
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            if (excp.getCause() instanceof Error) {
+                throw (Error) excp.getCause();
+            }
+            throw new IllegalStateException(excp.getCause());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw error("interrupted");
+        }
+        _output.write(result._bytes, 0, result._bytes.length);
+        if (result._error != null) {
+            _pending.clear();
+            _pool.shutdownNow();
+            throw result._error;
+        }
+    }
+
+    /** Convert SESSION with its machine.  Runs on one of the pool's
+     *  threads. */
+    private Result convert(Session session) {
+        Machine M = session._machine;
+        Metrics metrics = M.metrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        SessionEvent event = session._event;
+        boolean timed = event != null && event.isEnabled();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageOutput out =
+            new MessageOutput(Channels.newChannel(bytes), _charset);
+        EnigmaException failure = null;
+        char[] text = session._text;
+        try {
+            int from = 0;
+            for (int k = 0; k < session._lines; k += 1) {
+                int end = session._lineEnds[k];
+                for (int b = session._lineBlanks[k]; b > 0; b -= 1) {
+                    out.println();
+                }
+                long convertStart = timed ? System.nanoTime() : 0;
+                try {
+                    M.convert(text, from, end - from, text, from);
+                } catch (EnigmaException excp) {
+                    throw error("ind err");
+                }
+                long converted = timed ? System.nanoTime() : 0;
+                out.printGrouped(text, from, end - from, _group);
+                if (timed) {
+                    event.convertTime += converted - convertStart;
+                    event.outputTime += System.nanoTime() - converted;
+                }
+                from = end;
+            }
+        } catch (EnigmaException excp) {
+            failure = excp;
+        }
+        out.flush();
+        if (metrics != null) {
+            metrics.session(System.nanoTime() - start);
+        }
+        if (event != null) {
+            event.commit();
+        }
+        return new Result(bytes.toByteArray(), failure);
+    }
+
+    /** Convert the sessions of GROUP, which all use the same rotors,
+     *  together with _lockstep, and return their output, which stops at
+     *  the first session that fails.  Runs on one of the pool's
+     *  threads.  Each session's latency, and its conversion time, are
+     *  taken to be an equal share of the group's. */
+    private Result convert(Session[] group) {
+        Metrics metrics = group[0]._machine.metrics();
+        boolean timed = group[0]._event != null
+            && group[0]._event.isEnabled();
+        long start = metrics == null && !timed ? 0 : System.nanoTime();
+        Alphabet alphabet = group[0]._machine.spec().alphabet();
+        Machine[] machines = new Machine[group.length];
+        int[][] letters = new int[group.length][];
+        int[] lengths = new int[group.length];
+        for (int s = 0; s < group.length; s += 1) {
+            Session session = group[s];
+            machines[s] = session._machine;
+            int length = session._lines == 0
+                ? 0 : session._lineEnds[session._lines - 1];
+            letters[s] = new int[length];
+            for (int i = 0; i < length; i += 1) {
+                char ch = session._text[i];
+                if (ch == ' ') {
+                    continue;
+                }
+                if (!alphabet.contains(ch)) {
+                    break;
+                }
+                letters[s][lengths[s]] = alphabet.toInt(ch);
+                lengths[s] += 1;
+            }
+        }
+        _lockstep.convert(machines, letters, lengths);
+        long convertShare =
+            timed ? (System.nanoTime() - start) / group.length : 0;
+        if (metrics != null) {
+            for (int length : lengths) {
+                metrics.converted(length);
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        MessageOutput out =
+            new MessageOutput(Channels.newChannel(bytes), _charset);
+        EnigmaException failure = null;
+        for (int s = 0; s < group.length && failure == null; s += 1) {
+            Session session = group[s];
+            long outputStart = timed ? System.nanoTime() : 0;
+            char[] text = session._text;
+            int next = 0;
+            int from = 0;
+            for (int k = 0; k < session._lines; k += 1) {
+                int end = session._lineEnds[k];
+                for (int b = session._lineBlanks[k]; b > 0; b -= 1) {
+                    out.println();
+                }
+                for (int i = from; i < end; i += 1) {
+                    if (text[i] == ' ') {
+                        continue;
+                    }
+                    if (next == lengths[s]) {
+                        failure = error("ind err");
+                        break;
+                    }
+                    text[i] = alphabet.toChar(letters[s][next]);
+                    next += 1;
+                }
+                if (failure != null) {
+                    break;
+                }
+                out.printGrouped(text, from, end - from, _group);
+                from = end;
+            }
+            if (timed) {
+                session._event.convertTime = convertShare;
+                session._event.outputTime = System.nanoTime() - outputStart;
+            }
+            if (session._event != null) {
+                session._event.commit();
+            }
+        }
+        out.flush();
+        if (metrics != null) {
+            long share = (System.nanoTime() - start) / group.length;
+            for (int s = 0; s < group.length; s += 1) {
+                metrics.session(share);
+            }
+        }
+        return new Result(bytes.toByteArray(), failure);
+    }
+
+    /** A session read and set up, waiting to be converted. */
+    private static class Session {
+        /** A session converted by MACHINE and recorded by EVENT, whose
+         *  message lines are in
+         *  TEXT, line K ending at LINEENDS[K] and preceded by
+         *  LINEBLANKS[K] empty lines, for K < LINES. */
+        Session(Machine machine, SessionEvent event, char[] text,
+                int[] lineEnds, int[] lineBlanks, int lines) {
+            _machine = machine;
+            _event = event;
+            _text = text;
+            _lineEnds = lineEnds;
+            _lineBlanks = lineBlanks;
+            _lines = lines;
+        }
+
+        /** Machine set up for the session. */
+        private final Machine _machine;
+
+        /** Flight Recorder event for the session, or null. */
+        private final SessionEvent _event;
+
+        /** Message text of the session. */
+        private final char[] _text;
+
+        /** Line K of the session ends at _lineEnds[K] in _text, and is
+         *  preceded by _lineBlanks[K] empty lines. */
+        private final int[] _lineEnds, _lineBlanks;
+
+        /** Number of message lines. */
+        private final int _lines;
+    }
+
+    /** The outcome of converting one session. */
+    private static class Result {
+        /** A result with output BYTES that failed with ERROR, or succeeded
+         *  if ERROR is null. */
+        Result(byte[] bytes, EnigmaException error) {
+            _bytes = bytes;
+            _error = error;
+        }
+
+        /** Encoded output of the session. */
+        private final byte[] _bytes;
+
+        /** The error that ended the session, or null. */
+        private final EnigmaException _error;
+    }
+
+    /** Number of sessions per thread that may be outstanding at once. */
+    private static final int SESSIONS_PER_THREAD = 64;
+
+    /** Largest number of sessions converted together in lockstep. */
+    private static final int LOCKSTEP_GROUP = 256;
+
+    /** Initial capacity of a session's message text. */
+    private static final int INITIAL_TEXT = 1024;
+
+    /** Initial capacity of a session's line table. */
+    private static final int INITIAL_LINES = 16;
+
+    /** Threads converting sessions. */
+    private final ExecutorService _pool;
+
+    /** Destination of all output. */
+    private final MessageOutput _output;
+
+    /** Number of characters in each printed group. */
+    private final int _group;
+
+    /** Encoding of the output. */
+    private final Charset _charset;
+
+    /** Maximum number of outstanding sessions. */
+    private final int _window;
+
+    /** Results of submitted sessions not yet written, in input order. */
+    private final ArrayDeque<Future<Result>> _pending = new ArrayDeque<>();
+
+    /** Converts groups of sessions in lockstep, or null if sessions are
+     *  converted one at a time. */
+    private final Lockstep _lockstep;
+
+    /** Sessions gathered for converting together in lockstep. */
+    private final ArrayList<Session> _sessions = new ArrayList<>();
+
+    /** Machine for the session being read, or null if none. */
+    private Machine _machine;
+
+    /** Flight Recorder event for the session being read, or null. */
+    private SessionEvent _event;
+
+    /** Message text of the session being read. */
+    private char[] _text;
+
+    /** Number of characters in _text. */
+    private int _length;
+
+    /** Message line K of the session being read ends at _lineEnds[K] in
+     *  _text, and is preceded by _lineBlanks[K] empty lines. */
+    private int[] _lineEnds, _lineBlanks;
+
+    /** Number of message lines in the session being read. */
+    private int _lines;
+}
@@ -0,0 +1,56 @@
+package enigma;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/** A Java Flight Recorder event covering one session: a settings line
+ *  and the message lines that follow it, from setting up the machine to
+ *  printing the last line.  Until a recording enables it, an event's
+ *  begin and commit do nothing and isEnabled is false, so phases are
+ *  timed only when the event will be recorded.
+ *  @author Arhan Vohra
+ */
+@Name("enigma.Session")
+@Label("Enigma Session")
+@Category("Enigma")
+@Description("Setting up a machine and converting one session's messages")
+class SessionEvent extends Event {
+
+    /** Names of the rotors used, reflector first, separated by blanks. */
+    @Label("Rotors")
+    String rotors;
+
+    /** Number of message characters in the session, blanks included. */
+    @Label("Message Length")
+    @DataAmount(DataAmount.BYTES)
+    long messageLength;
+
+    /** Time taken to apply the settings line. */
+    @Label("Setup Time")
+    @Timespan
+    long setupTime;
+
+    /** Time spent converting message characters. */
+    @Label("Convert Time")
+    @Timespan
+    long convertTime;
+
+    /** Time spent formatting and writing converted lines. */
+    @Label("Output Time")
+    @Timespan
+    long outputTime;
+
+    /** Set rotors to the names of the rotors in M's slots. */
+    void rotorsOf(Machine M) {
+        StringBuilder names = new StringBuilder();
+        for (int i = 0; i < M.numRotors(); i += 1) {
+            names.append(i == 0 ? "" : " ").append(M.rotor(i).name());
+        }
+        rotors = names.toString();
+    }
+}
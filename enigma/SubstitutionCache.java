@@ -0,0 +1,195 @@
+package enigma;
+
+import java.util.Arrays;
+
+import static enigma.EnigmaException.error;
+
+/** A bounded cache of complete substitution tables, keyed by an encoding
+ *  of the rotor settings that produced them, that discards the least
+ *  recently used table when full.  Keys are kept in a primitive
+ *  open-addressed hash table and recency in an index-linked list, so
+ *  lookups do not allocate, and the table of an evicted entry is handed
+ *  out again for the entry that replaces it.
+ *  @author Arhan Vohra
+ */
+class SubstitutionCache {
+
+    /** A cache holding at most CAPACITY tables of WIDTH entries each. */
+    SubstitutionCache(int capacity, int width) {
+        if (capacity < 1) {
+            throw error("cache must hold at least one table");
+        }
+        _width = width;
+        _keys = new long[capacity];
+        _tables = new int[capacity][];
+        _prev = new int[capacity];
+        _next = new int[capacity];
+        int slots = Integer.highestOneBit(capacity) << 2;
+        _slots = new int[slots];
+        _mask = slots - 1;
+        clear();
+    }
+
+    /** Return the maximum number of tables I hold. */
+    int capacity() {
+        return _keys.length;
+    }
+
+    /** Return the number of tables I currently hold. */
+    int size() {
+        return _size;
+    }
+
+    /** Return the number of get() calls that found their table. */
+    long hits() {
+        return _hits;
+    }
+
+    /** Return the number of get() calls that did not find their table. */
+    long misses() {
+        return _misses;
+    }
+
+    /** Discard all tables. */
+    void clear() {
+        Arrays.fill(_slots, 0);
+        _size = 0;
+        _head = _tail = -1;
+    }
+
+    /** Return the table stored under KEY, marking it most recently used,
+     *  or null if there is none. */
+    int[] get(long key) {
+        int i = home(key);
+        while (_slots[i] != 0) {
+            int e = _slots[i] - 1;
+            if (_keys[e] == key) {
+                _hits += 1;
+                touch(e);
+                return _tables[e];
+            }
+            i = (i + 1) & _mask;
+        }
+        _misses += 1;
+        return null;
+    }
+
+    /** Return a table to be stored under KEY, which must not already be
+     *  present, evicting the least recently used table if I am full.  The
+     *  caller must fill in all of its entries before the next call. */
+    int[] claim(long key) {
+        int e;
+        if (_size < _keys.length) {
+            e = _size;
+            _size += 1;
+            _tables[e] = new int[_width];
+        } else {
+            e = _tail;
+            unlinkKey(_keys[e]);
+            detach(e);
+        }
+        _keys[e] = key;
+        int i = home(key);
+        while (_slots[i] != 0) {
+            i = (i + 1) & _mask;
+        }
+        _slots[i] = e + 1;
+        attachFirst(e);
+        return _tables[e];
+    }
+
+    /** Return the home slot of KEY. */
+    private int home(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & _mask;
+    }
+
+    /** Remove KEY, which must be present, from the hash slots, shifting
+     *  later entries of its probe sequence back to fill the gap. */
+    private void unlinkKey(long key) {
+        int i = home(key);
+        while (_keys[_slots[i] - 1] != key) {
+            i = (i + 1) & _mask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & _mask;
+            if (_slots[j] == 0) {
+                break;
+            }
+            int k = home(_keys[_slots[j] - 1]);
+            boolean movable = i <= j ? (k <= i || k > j) : (k <= i && k > j);
+            if (movable) {
+                _slots[i] = _slots[j];
+                i = j;
+            }
+        }
+        _slots[i] = 0;
+    }
+
+    /** Make entry E the most recently used. */
+    private void touch(int e) {
+        if (e != _head) {
+            detach(e);
+            attachFirst(e);
+        }
+    }
+
+    /** Remove entry E from the recency list. */
+    private void detach(int e) {
+        if (_prev[e] >= 0) {
+            _next[_prev[e]] = _next[e];
+        } else {
+            _head = _next[e];
+        }
+        if (_next[e] >= 0) {
+            _prev[_next[e]] = _prev[e];
+        } else {
+            _tail = _prev[e];
+        }
+    }
+
+    /** Add entry E to the front of the recency list. */
+    private void attachFirst(int e) {
+        _prev[e] = -1;
+        _next[e] = _head;
+        if (_head >= 0) {
+            _prev[_head] = e;
+        }
+        _head = e;
+        if (_tail < 0) {
+            _tail = e;
+        }
+    }
+
+    /** Number of entries in each table. */
+    private final int _width;
+
+    /** Key of each entry. */
+    private final long[] _keys;
+
+    /** Table of each entry. */
+    private final int[][] _tables;
+
+    /** Previous (more recently used) entry of each entry, or -1. */
+    private final int[] _prev;
+
+    /** Next (less recently used) entry of each entry, or -1. */
+    private final int[] _next;
+
+    /** Open-addressed hash slots holding entry numbers plus one, with 0
+     *  marking an empty slot. */
+    private final int[] _slots;
+
+    /** One less than the number of hash slots. */
+    private final int _mask;
+
+    /** Number of entries in use. */
+    private int _size;
+
+    /** Most and least recently used entries, or -1 if empty. */
+    private int _head, _tail;
+
+    /** Lookup statistics. */
+    private long _hits, _misses;
+}